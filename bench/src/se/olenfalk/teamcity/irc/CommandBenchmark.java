@@ -0,0 +1,37 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing of incoming messages. Most channel traffic isn't addressed to the
+ * bot, so {@link #ignored()} is the common case.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandBenchmark {
+
+    private static final String NICKNAME = "tcbot";
+
+    public String chatter = "has anyone seen the failing build on the release branch?";
+    public String command = "tcbot: build \"My Project\" 'Nightly build' feature/foo";
+
+    @Benchmark
+    public int ignored() {
+        return CommandTokenizer.addressedTo(NICKNAME, "#builds", chatter);
+    }
+
+    @Benchmark
+    public List<String> tokenize() {
+        int offset = CommandTokenizer.addressedTo(NICKNAME, "#builds", command);
+        return CommandTokenizer.tokenize(command, offset);
+    }
+}
@@ -0,0 +1,48 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jetbrains.buildServer.serverSide.SRunningBuild;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Formatting of finished builds, which runs for every build event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FormatBenchmark {
+
+    @Param({ "0", "10", "1000" })
+    public int problems;
+
+    private SRunningBuild build;
+    private BuildMessage message;
+    private TemplateSet templates;
+
+    @Setup
+    public void setUp() {
+        build = Stubs.runningBuild("Project :: Configuration", "1234", problems);
+        message = new BuildMessage(BuildMessage.Event.FAILED, build);
+        templates = new TemplateSet(null, TemplateSet.DEFAULTS);
+    }
+
+    @Benchmark
+    public BuildMessage readBuild() {
+        return new BuildMessage(BuildMessage.Event.FAILED, build);
+    }
+
+    @Benchmark
+    public List<String> render() {
+        return templates.format(message);
+    }
+}
@@ -0,0 +1,68 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jetbrains.buildServer.serverSide.SProject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.olenfalk.teamcity.irc.IrcSettings.Channel;
+
+/**
+ * Finding the channels interested in a project, once by matching every
+ * pattern and once through the cached {@link ChannelRouter}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RoutingBenchmark {
+
+    @Param({ "10", "100" })
+    public int channels;
+
+    @Param({ "1", "10" })
+    public int patterns;
+
+    private List<Channel> channelList;
+    private ChannelRouter router;
+    private SProject project;
+
+    @Setup
+    public void setUp() {
+        channelList = new ArrayList<Channel>();
+        for (int i = 0; i < channels; i++) {
+            StringBuilder projects = new StringBuilder();
+            for (int j = 0; j < patterns; j++) {
+                projects.append("team").append(i).append("-component").append(j).append(".* ");
+            }
+            channelList.add(new Channel("#channel" + i, projects.toString().trim()));
+        }
+        router = new ChannelRouter(channelList);
+        project = Stubs.project("project42", "team" + (channels - 1) + "-component" + (patterns - 1) + "-server");
+    }
+
+    @Benchmark
+    public int interestedIn() {
+        int interested = 0;
+        for (Channel channel : channelList) {
+            if (channel.interestedIn(project)) {
+                interested++;
+            }
+        }
+        return interested;
+    }
+
+    @Benchmark
+    public int router() {
+        return router.channelsFor(project).size();
+    }
+}
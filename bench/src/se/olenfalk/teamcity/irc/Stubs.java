@@ -0,0 +1,71 @@
+package se.olenfalk.teamcity.irc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.problems.BuildProblem;
+
+/**
+ * Offline stand-ins for the TeamCity types the benchmarks need. Methods
+ * without an explicit answer return null, zero, false or an empty list.
+ */
+public class Stubs {
+
+    public static <T> T stub(Class<T> type, final Map<String, Object> answers) {
+        Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (answers.containsKey(method.getName())) {
+                    return answers.get(method.getName());
+                }
+                return defaultValue(method.getReturnType());
+            }
+        });
+        return type.cast(proxy);
+    }
+
+    public static SProject project(String id, String name) {
+        Map<String, Object> answers = new HashMap<String, Object>();
+        answers.put("getProjectId", id);
+        answers.put("getName", name);
+        answers.put("hashCode", id.hashCode());
+        return stub(SProject.class, answers);
+    }
+
+    public static SRunningBuild runningBuild(String fullName, String number, int problemCount) {
+        List<BuildProblem> problems = new ArrayList<BuildProblem>();
+        for (int i = 0; i < problemCount; i++) {
+            Map<String, Object> problem = new HashMap<String, Object>();
+            problem.put("getStringRepresentation", "Test com.example.SomeTest.testNumber" + i + " failed: expected:<1> but was:<2>");
+            problems.add(stub(BuildProblem.class, problem));
+        }
+
+        Map<String, Object> answers = new HashMap<String, Object>();
+        answers.put("getFullName", fullName);
+        answers.put("getBuildNumber", number);
+        answers.put("getAgentName", "agent-01");
+        answers.put("getBuildProblems", problems);
+        return stub(SRunningBuild.class, answers);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == Boolean.TYPE) return Boolean.FALSE;
+        if (type == Integer.TYPE) return 0;
+        if (type == Long.TYPE) return 0L;
+        if (type == Short.TYPE) return (short) 0;
+        if (type == Byte.TYPE) return (byte) 0;
+        if (type == Character.TYPE) return (char) 0;
+        if (type == Double.TYPE) return 0.0;
+        if (type == Float.TYPE) return 0.0f;
+        if (type == List.class) return Collections.emptyList();
+        return null;
+    }
+}
@@ -0,0 +1,48 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter for reconnect attempts. Each failed
+ * attempt doubles the delay up to the cap; the actual delay is picked at
+ * random between half and all of it so that several bots restarting
+ * together don't hammer the server in lockstep.
+ */
+public class Backoff {
+
+    private final Random random = new Random();
+    private long initialDelay;
+    private long maxDelay;
+    private long nextDelay;
+    private int attempts = 0;
+
+    public Backoff(long initialDelay, long maxDelay) {
+        setDelays(initialDelay, maxDelay);
+        this.nextDelay = this.initialDelay;
+    }
+
+    public synchronized void setDelays(long initialDelay, long maxDelay) {
+        this.initialDelay = Math.max(1, initialDelay);
+        this.maxDelay = Math.max(this.initialDelay, maxDelay);
+        this.nextDelay = Math.min(this.maxDelay, Math.max(this.initialDelay, nextDelay));
+    }
+
+    /**
+     * @return the delay in milliseconds before the next attempt
+     */
+    public synchronized long nextDelay() {
+        long delay = nextDelay;
+        nextDelay = Math.min(maxDelay, nextDelay * 2);
+        attempts++;
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    public synchronized void reset() {
+        nextDelay = initialDelay;
+        attempts = 0;
+    }
+}
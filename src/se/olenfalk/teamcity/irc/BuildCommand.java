@@ -0,0 +1,49 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.serverSide.BuildTypeEx;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SProject;
+
+import org.schwering.irc.lib.IRCUser;
+
+public class BuildCommand extends Command {
+
+    private final ProjectIndex index;
+
+    public BuildCommand(ProjectIndex index) {
+        super("build", "<project name> <build type name> [<branch>]", "Start a build", 2, Permission.ANYONE);
+        this.index = index;
+    }
+
+    @Override
+    public void execute(IRCUser user, List<String> args, List<String> reply) {
+        String projectName  = args.get(0);
+        String typeName     = args.get(1);
+        String branch = null;
+        if(args.size() > 2) branch = args.get(2);
+
+        SProject project = index.findProject(projectName, reply);
+
+        if(project != null) {
+            SBuildType buildType = index.findBuildType(project, typeName, reply);
+            if(buildType != null) {
+
+                if(branch == null) {
+                    buildType.addToQueue(user.getNick());
+                } else {
+                    BuildPromotionEx promo = ((BuildTypeEx)buildType).createBuildPromotion();
+                    Map<String, String> parameters = new HashMap<String, String>();
+                    parameters.put("PROJECT_BRANCH", branch);
+                    promo.setCustomParameters(parameters);
+                    promo.addToQueue(user.getNick());
+                }
+                reply.add("Build " + buildType.getFullName() + " queued");
+            }
+        }
+    }
+}
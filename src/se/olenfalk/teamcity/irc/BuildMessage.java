@@ -0,0 +1,99 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.comments.Comment;
+import jetbrains.buildServer.serverSide.problems.BuildProblem;
+
+/**
+ * Everything a {@link MessageTemplate} can refer to, read from the build
+ * once per event.
+ */
+public class BuildMessage {
+
+    public enum Event {
+        STARTED("started", "started"),
+        SUCCEEDED("succeeded", "succeeded"),
+        FAILED("failed", "failed"),
+        FAILING("failing", "failing"),
+        HANGING("hanging", "probably hanging"),
+        FAILED_TO_START("failed-to-start", "failed to start");
+
+        /** Name used for the event in main-config.xml */
+        public final String key;
+        /** Text for {state} */
+        public final String state;
+
+        Event(String key, String state) {
+            this.key = key;
+            this.state = state;
+        }
+
+        public static Event forKey(String key) {
+            for (Event event : values()) {
+                if (event.key.equals(key)) {
+                    return event;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Event event;
+    private final String[] values = new String[MessageTemplate.Variable.values().length];
+    private final List<String> problems;
+    private final String shortName;
+
+    public BuildMessage(Event event, SRunningBuild srb) {
+        this.event = event;
+        this.shortName = Util.getShortName(srb);
+
+        set(MessageTemplate.Variable.BUILD, Util.getFullName(srb));
+        set(MessageTemplate.Variable.NAME, srb.getFullName());
+        set(MessageTemplate.Variable.NUMBER, srb.getBuildNumber());
+        set(MessageTemplate.Variable.STATE, event.state);
+        set(MessageTemplate.Variable.AGENT, srb.getAgentName());
+
+        Comment comment = srb.getBuildComment();
+        set(MessageTemplate.Variable.COMMENT, comment == null ? ""
+                : " (" + comment.getUser().getName() + ": " + comment.getComment() + ")");
+
+        List<BuildProblem> buildProblems = srb.getBuildProblems();
+        if (buildProblems.isEmpty()) {
+            problems = Collections.emptyList();
+        } else {
+            problems = new ArrayList<String>(buildProblems.size());
+            for (BuildProblem buildProblem : buildProblems) {
+                problems.add(buildProblem.getStringRepresentation());
+            }
+        }
+        set(MessageTemplate.Variable.PROBLEMS, Integer.toString(problems.size()));
+    }
+
+    public Event getEvent() {
+        return event;
+    }
+
+    /**
+     * @return "full name#number", used in digests
+     */
+    public String getShortName() {
+        return shortName;
+    }
+
+    public List<String> getProblems() {
+        return problems;
+    }
+
+    public String get(MessageTemplate.Variable variable) {
+        String value = values[variable.ordinal()];
+        return value == null ? "" : value;
+    }
+
+    private void set(MessageTemplate.Variable variable, String value) {
+        values[variable.ordinal()] = value;
+    }
+}
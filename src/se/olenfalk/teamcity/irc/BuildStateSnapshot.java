@@ -0,0 +1,111 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.util.EventDispatcher;
+
+/**
+ * Running builds and queue length, kept up to date from build server
+ * events so the status command can answer from memory instead of asking
+ * TeamCity's build model every time. Only the first status after startup
+ * reads the model.
+ */
+public class BuildStateSnapshot extends BuildServerAdapter {
+
+    public static class State {
+        /** Full names of the running builds, oldest first */
+        public final List<String> running;
+        public final int queued;
+
+        State(List<String> running, int queued) {
+            this.running = running;
+            this.queued = queued;
+        }
+    }
+
+    private final SBuildServer server;
+    private final ConcurrentSkipListMap<Long, String> running = new ConcurrentSkipListMap<Long, String>();
+    /** Promotion ids of the queued builds */
+    private final Set<Long> queued = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private volatile State state = new State(Collections.<String>emptyList(), 0);
+    private volatile boolean synced = false;
+
+    public BuildStateSnapshot(SBuildServer server, EventDispatcher<BuildServerListener> dispatcher) {
+        this.server = server;
+        dispatcher.addListener(this);
+    }
+
+    public State getState() {
+        if (!synced) {
+            resync();
+        }
+        return state;
+    }
+
+    @Override
+    public void serverStartup() {
+        // whatever was queued before startup, the next status reads it
+        synced = false;
+    }
+
+    @Override
+    public void buildStarted(SRunningBuild srb) {
+        running.put(srb.getBuildId(), Util.getFullName(srb));
+        queued.remove(srb.getBuildPromotion().getId());
+        publish();
+    }
+
+    @Override
+    public void buildFinished(SRunningBuild srb) {
+        running.remove(srb.getBuildId());
+        publish();
+    }
+
+    @Override
+    public void buildInterrupted(SRunningBuild srb) {
+        running.remove(srb.getBuildId());
+        publish();
+    }
+
+    @Override
+    public void buildTypeAddedToQueue(SQueuedBuild queuedBuild) {
+        if (queued.add(queuedBuild.getBuildPromotion().getId())) {
+            publish();
+        }
+    }
+
+    @Override
+    public void buildRemovedFromQueue(SQueuedBuild queuedBuild, User user, String comment) {
+        if (queued.remove(queuedBuild.getBuildPromotion().getId())) {
+            publish();
+        }
+    }
+
+    private synchronized void resync() {
+        running.clear();
+        for (SRunningBuild srb : server.getRunningBuilds()) {
+            running.put(srb.getBuildId(), Util.getFullName(srb));
+        }
+        queued.clear();
+        for (SQueuedBuild queuedBuild : server.getQueue().getItems()) {
+            queued.add(queuedBuild.getBuildPromotion().getId());
+        }
+        synced = true;
+        publish();
+    }
+
+    private synchronized void publish() {
+        state = new State(Collections.unmodifiableList(new ArrayList<String>(running.values())), queued.size());
+    }
+}
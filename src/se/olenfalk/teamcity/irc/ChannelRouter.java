@@ -0,0 +1,67 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jetbrains.buildServer.serverSide.SProject;
+
+import se.olenfalk.teamcity.irc.IrcSettings.Channel;
+
+/**
+ * Remembers which channels are interested in a project, so the project
+ * patterns only have to be matched once per project instead of once per
+ * message. Entries must be invalidated when a project is renamed or removed.
+ *
+ * Lookups never lock: a route is computed outside any lock and dropped again
+ * if the routes were invalidated meanwhile, as it may be stale.
+ */
+public class ChannelRouter {
+
+    private final Collection<Channel> channels;
+    private final ConcurrentMap<String, List<Channel>> routes = new ConcurrentHashMap<String, List<Channel>>();
+    private final AtomicLong generation = new AtomicLong();
+
+    public ChannelRouter(Collection<Channel> channels) {
+        this.channels = new ArrayList<Channel>(channels);
+    }
+
+    public List<Channel> channelsFor(SProject project) {
+        if (project == null) {
+            return Collections.emptyList();
+        }
+
+        List<Channel> route = routes.get(project.getProjectId());
+        if (route != null) {
+            return route;
+        }
+
+        long before = generation.get();
+        List<Channel> interested = new ArrayList<Channel>();
+        for (Channel channel : channels) {
+            if (channel.interestedIn(project)) {
+                interested.add(channel);
+            }
+        }
+        route = Collections.unmodifiableList(interested);
+        routes.put(project.getProjectId(), route);
+        if (generation.get() != before) {
+            routes.remove(project.getProjectId(), route);
+        }
+        return route;
+    }
+
+    public void invalidate(String projectId) {
+        generation.incrementAndGet();
+        routes.remove(projectId);
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        routes.clear();
+    }
+}
@@ -0,0 +1,73 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.List;
+
+import org.schwering.irc.lib.IRCUser;
+
+/**
+ * A command the bot understands. Commands are registered with a
+ * {@link CommandRegistry} and looked up by the first word of the message.
+ */
+public abstract class Command {
+
+    public enum Permission {
+        /** Anyone who can talk to the bot */
+        ANYONE,
+        /** Only users matching one of the configured owner masks */
+        OWNER
+    }
+
+    private final String name;
+    private final String usage;
+    private final String help;
+    private final int arity;
+    private final Permission permission;
+
+    /**
+     * @param usage arguments as shown in the help, e.g. "&lt;project name&gt;"
+     * @param arity the number of arguments that must be given
+     */
+    protected Command(String name, String usage, String help, int arity, Permission permission) {
+        this.name = name;
+        this.usage = usage;
+        this.help = help;
+        this.arity = arity;
+        this.permission = permission;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUsage() {
+        return usage.length() == 0 ? name : name + " " + usage;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    public int getArity() {
+        return arity;
+    }
+
+    public Permission getPermission() {
+        return permission;
+    }
+
+    /**
+     * @return whether the user may run this command on the network with
+     *         these settings
+     */
+    public boolean isAllowed(IRCUser user, IrcSettings settings) {
+        return permission == Permission.ANYONE || settings.isOwner(user);
+    }
+
+    /**
+     * Runs the command on a worker thread.
+     *
+     * @param args the arguments, without the command name
+     * @param reply lines to send back to the user
+     */
+    public abstract void execute(IRCUser user, List<String> args, List<String> reply);
+}
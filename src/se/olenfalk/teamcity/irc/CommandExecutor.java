@@ -0,0 +1,84 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs IRC commands on a small bounded pool, so slow calls into TeamCity
+ * never block the event loop thread (and with it PING handling). Each
+ * nick gets its own {@link TokenBucket} to stop anyone from spamming the
+ * bot.
+ */
+public class CommandExecutor {
+
+    private static final int MAX_TRACKED_NICKS = 256;
+
+    private final ThreadPoolExecutor executor;
+    private final Map<String, TokenBucket> buckets = new LinkedHashMap<String, TokenBucket>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+            return size() > MAX_TRACKED_NICKS;
+        }
+    };
+    private double rate;
+    private int burst;
+
+    public CommandExecutor(String name, IrcSettings settings) {
+        executor = new ThreadPoolExecutor(settings.commandThreads, settings.commandThreads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(settings.commandQueueSize),
+                Util.daemonThreads("IRC commands " + name),
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        this.rate = settings.commandRate;
+        this.burst = settings.commandBurst;
+    }
+
+    /**
+     * @return false if the nick has used up its command allowance
+     */
+    public synchronized boolean allow(String nick) {
+        TokenBucket bucket = buckets.get(nick);
+        if (bucket == null) {
+            bucket = new TokenBucket(rate, burst);
+            buckets.put(nick, bucket);
+        }
+        return bucket.tryAcquire() == 0;
+    }
+
+    /**
+     * @return false if the pool is saturated and the command was not queued
+     */
+    public boolean submit(Runnable command) {
+        try {
+            executor.execute(command);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    public synchronized void reconfigure(IrcSettings settings) {
+        rate = settings.commandRate;
+        burst = settings.commandBurst;
+        buckets.clear();
+
+        if (settings.commandThreads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(settings.commandThreads);
+            executor.setCorePoolSize(settings.commandThreads);
+        } else {
+            executor.setCorePoolSize(settings.commandThreads);
+            executor.setMaximumPoolSize(settings.commandThreads);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
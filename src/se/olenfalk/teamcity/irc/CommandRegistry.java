@@ -0,0 +1,45 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The commands the bot understands, by name.
+ */
+public class CommandRegistry {
+
+    private final Map<String, Command> commands = new TreeMap<String, Command>();
+    private final HelpCommand help = new HelpCommand(this);
+
+    /**
+     * Creates a registry with the built-in commands.
+     */
+    public CommandRegistry(Metrics metrics, BuildStateSnapshot snapshot, ProjectIndex index) {
+        register(new BuildCommand(index));
+        register(help);
+        register(new ShowCommand(index));
+        register(new StatsCommand(metrics));
+        register(new StatusCommand(snapshot));
+    }
+
+    public synchronized void register(Command command) {
+        commands.put(command.getName(), command);
+    }
+
+    public synchronized Command find(String name) {
+        return commands.get(name);
+    }
+
+    public HelpCommand getHelp() {
+        return help;
+    }
+
+    /**
+     * @return the commands sorted by name
+     */
+    public synchronized Collection<Command> getCommands() {
+        return new ArrayList<Command>(commands.values());
+    }
+}
@@ -0,0 +1,73 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits command lines into words. Text in single or double quotes is kept
+ * together as one word, without the quotes.
+ */
+public class CommandTokenizer {
+
+    /**
+     * Checks whether a message is meant for the bot without allocating
+     * anything, since most channel traffic isn't.
+     *
+     * @return the offset of the command in the message, or -1 if the message
+     *         isn't addressed to {@code nickname}
+     */
+    public static int addressedTo(String nickname, String target, String message) {
+        int length = nickname.length();
+        if (message.length() > length
+                && message.charAt(length) == ':'
+                && message.regionMatches(0, nickname, 0, length)) {
+            int offset = length + 1;
+            while (offset < message.length() && Character.isWhitespace(message.charAt(offset))) {
+                offset++;
+            }
+            return offset;
+        }
+
+        if (target.equals(nickname)) {
+            // private message
+            return 0;
+        }
+        return -1;
+    }
+
+    public static List<String> tokenize(String command) {
+        return tokenize(command, 0);
+    }
+
+    public static List<String> tokenize(String command, int offset) {
+        List<String> tokens = new ArrayList<String>(4);
+        int length = command.length();
+        int i = offset;
+        while (i < length) {
+            char c = command.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"' || c == '\'') {
+                int end = command.indexOf(c, i + 1);
+                if (end < 0) {
+                    // unterminated quote, skip it
+                    i++;
+                } else {
+                    tokens.add(command.substring(i + 1, end));
+                    i = end + 1;
+                }
+            } else {
+                int start = i;
+                while (i < length && !isDelimiter(command.charAt(i))) {
+                    i++;
+                }
+                tokens.add(command.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isDelimiter(char c) {
+        return c == '"' || c == '\'' || Character.isWhitespace(c);
+    }
+}
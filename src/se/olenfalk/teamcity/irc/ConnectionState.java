@@ -0,0 +1,16 @@
+package se.olenfalk.teamcity.irc;
+
+/**
+ * Lifecycle of an {@link IrcConnection}. Connecting happens in the
+ * background, so callers only ever look at the state and never wait for it.
+ */
+public enum ConnectionState {
+    /** Opening the socket or waiting for the server to accept our registration */
+    CONNECTING,
+    /** Registered with the server, messages are being sent */
+    REGISTERED,
+    /** The last attempt failed or the connection dropped, waiting to retry */
+    BACKING_OFF,
+    /** Shut down for good */
+    CLOSED
+}
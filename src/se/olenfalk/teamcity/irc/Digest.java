@@ -0,0 +1,102 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import se.olenfalk.teamcity.irc.IrcSettings.Channel;
+
+/**
+ * Collects finished builds for channels in digest mode and sends one summary
+ * line per channel when its window closes, e.g.
+ * "12 succeeded, 3 failed: A#123, B#45, C#9".
+ */
+public class Digest {
+
+    private static class Pending {
+        int succeeded = 0;
+        List<String> failed = new ArrayList<String>();
+    }
+
+    private final Map<Channel, Pending> pending = new HashMap<Channel, Pending>();
+    private final ScheduledExecutorService scheduler;
+    private final OutboundQueue outbound;
+
+    public Digest(ScheduledExecutorService scheduler, OutboundQueue outbound) {
+        this.scheduler = scheduler;
+        this.outbound = outbound;
+    }
+
+    public synchronized void add(final Channel channel, String build, boolean failed) {
+        Pending entry = pending.get(channel);
+        if (entry == null) {
+            entry = new Pending();
+            pending.put(channel, entry);
+
+            try {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(channel);
+                    }
+                }, channel.getDigestWindow(), TimeUnit.SECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down, flushAll() will pick it up
+            }
+        }
+
+        if (failed) {
+            entry.failed.add(build);
+        } else {
+            entry.succeeded++;
+        }
+    }
+
+    public void flush(Channel channel) {
+        Pending entry;
+        synchronized (this) {
+            entry = pending.remove(channel);
+        }
+        if (entry == null) {
+            return;
+        }
+
+        Priority priority = entry.failed.isEmpty() ? Priority.SUCCESS : Priority.FAILURE;
+        outbound.offer(priority, channel.getName(), format(entry));
+    }
+
+    public void flushAll() {
+        List<Channel> channels;
+        synchronized (this) {
+            channels = new ArrayList<Channel>(pending.keySet());
+        }
+        for (Channel channel : channels) {
+            flush(channel);
+        }
+    }
+
+    private static String format(Pending entry) {
+        StringBuilder msg = new StringBuilder();
+        if (entry.succeeded > 0) {
+            msg.append(entry.succeeded).append(" succeeded");
+        }
+
+        if (!entry.failed.isEmpty()) {
+            if (msg.length() > 0) {
+                msg.append(", ");
+            }
+            msg.append(entry.failed.size()).append(" failed: ");
+            for (int i = 0; i < entry.failed.size(); i++) {
+                if (i > 0) {
+                    msg.append(", ");
+                }
+                msg.append(entry.failed.get(i));
+            }
+        }
+        return msg.toString();
+    }
+}
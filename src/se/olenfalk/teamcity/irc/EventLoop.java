@@ -0,0 +1,160 @@
+package se.olenfalk.teamcity.irc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The one thread doing network I/O for all IRC connections. Channels are
+ * registered with a {@link Handler} that is called when they are ready;
+ * anything else that must happen on the loop thread is passed to
+ * {@link #execute(Runnable)}.
+ *
+ * Direct buffers are expensive to create, so the loop keeps a shared read
+ * buffer and a small pool for the transports that need buffers of their
+ * own. Both may only be used on the loop thread.
+ */
+public class EventLoop {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventLoop.class);
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED = 16;
+
+    public interface Handler {
+        /**
+         * Called on the loop thread when the key is ready.
+         */
+        void ready(SelectionKey key) throws IOException;
+
+        /**
+         * Called on the loop thread when ready() threw.
+         */
+        void failed(Exception e);
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+    private volatile boolean closed = false;
+
+    public EventLoop() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "IRC event loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs the task on the loop thread, soon.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Registers the channel, which must be non-blocking. Loop thread only.
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * @return the buffer to read into, cleared. Loop thread only, and only
+     *         until the handler returns.
+     */
+    public ByteBuffer readBuffer() {
+        readBuffer.clear();
+        return readBuffer;
+    }
+
+    /**
+     * @return a cleared direct buffer of at least the given size. Loop
+     *         thread only.
+     */
+    public ByteBuffer acquire(int size) {
+        for (Iterator<ByteBuffer> it = pool.iterator(); it.hasNext(); ) {
+            ByteBuffer buffer = it.next();
+            if (buffer.capacity() >= size) {
+                it.remove();
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Returns a buffer from {@link #acquire(int)}. Loop thread only.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.isDirect() && pool.size() < MAX_POOLED) {
+            pool.add(buffer);
+        }
+    }
+
+    public void shutdown() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void loop() {
+        while (!closed) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                LOG.warn("Select failed", e);
+                continue;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    LOG.warn("IRC event loop task failed", e);
+                }
+            }
+
+            for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                SelectionKey key = it.next();
+                it.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.ready(key);
+                    }
+                } catch (Exception e) {
+                    handler.failed(e);
+                }
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.List;
+
+import org.schwering.irc.lib.IRCUser;
+
+public class HelpCommand extends Command {
+
+    private final CommandRegistry registry;
+
+    public HelpCommand(CommandRegistry registry) {
+        super("help", "", "Show this message", 0, Permission.ANYONE);
+        this.registry = registry;
+    }
+
+    /**
+     * Lists the commands anyone may run; see
+     * {@link #list(IRCUser, IrcSettings, List)} for a network's owners.
+     */
+    @Override
+    public void execute(IRCUser user, List<String> args, List<String> reply) {
+        list(user, null, reply);
+    }
+
+    /**
+     * Lists the commands the user may run on the network with these
+     * settings, or the ones anyone may run if settings is null.
+     */
+    public void list(IRCUser user, IrcSettings settings, List<String> reply) {
+        reply.add("I understand these commands");
+        for (Command command : registry.getCommands()) {
+            boolean allowed = settings == null
+                    ? command.getPermission() == Permission.ANYONE
+                    : command.isAllowed(user, settings);
+            if (allowed) {
+                reply.add("    " + command.getUsage());
+                reply.add("        " + command.getHelp());
+            }
+        }
+    }
+}
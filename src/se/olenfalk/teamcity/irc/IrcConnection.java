@@ -1,29 +1,31 @@
 package se.olenfalk.teamcity.irc;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.SSLContext;
 
-import jetbrains.buildServer.serverSide.BuildPromotionEx;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
-import jetbrains.buildServer.serverSide.BuildTypeEx;
 import jetbrains.buildServer.serverSide.SBuildServer;
-import jetbrains.buildServer.serverSide.SBuildType;
 import jetbrains.buildServer.serverSide.SProject;
-import jetbrains.buildServer.serverSide.SRunningBuild;
 
 import org.schwering.irc.lib.IRCEventListener;
 import org.schwering.irc.lib.IRCModeParser;
 import org.schwering.irc.lib.IRCUser;
-import org.schwering.irc.lib.ssl.SSLDefaultTrustManager;
-import org.schwering.irc.lib.ssl.SSLIRCConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,132 +33,660 @@ import se.olenfalk.teamcity.irc.IrcSettings.Channel;
 
 
 
-public class IrcConnection implements IRCEventListener {
+public class IrcConnection {
 
     private static final Logger LOG = LoggerFactory.getLogger(IrcConnection.class);
 
-    private static final Pattern ARGUMENTS_PATTERN = Pattern.compile("[^\\s\"']+|\"([^\"]*)\"|'([^']*)'");
+    private static final int RPL_ENDOFMOTD = 376;
+    private static final int ERR_NOMOTD = 422;
+    private static final int MAILBOX_COMPACT_MINUTES = 10;
+    /** How often journaled messages are forced to disk */
+    private static final int JOURNAL_SYNC_MILLIS = 200;
+    /** Stored messages sent in full when a nick comes back, beyond that only counted */
+    private static final int MAIL_LINES = 5;
+    /** How long the server gets to welcome us before we try again */
+    private static final int REGISTRATION_TIMEOUT_SECONDS = 60;
+    private static final int WATCHDOG_CHECK_SECONDS = 1;
+
+    /**
+     * What the event threads, the network thread and the scheduler share
+     * about the connection. Never changed, only replaced as a whole, so
+     * nobody sees half an update and reading it takes no lock.
+     */
+    private static final class Session {
+        final ConnectionState state;
+        final IrcSettings settings;
+        final IrcTransport transport;
+        final String nickname;
+        /** The configured channels, in order */
+        final Set<Channel> channels;
+        final ChannelRouter router;
+
+        private Session(ConnectionState state, IrcSettings settings, IrcTransport transport, String nickname,
+                Set<Channel> channels, ChannelRouter router) {
+            this.state = state;
+            this.settings = settings;
+            this.transport = transport;
+            this.nickname = nickname;
+            this.channels = channels;
+            this.router = router;
+        }
 
-    private IrcSettings settings;
-    private SSLIRCConnection connection;
-    private boolean serverShutdown = false;
-    private String currentNickname = "teamcity";
-    private Set<Channel> channels = new HashSet<Channel>();
-    private Timer connectTimer = new Timer();
-    private SBuildServer server;
+        static Session create(IrcSettings settings, IrcTransport transport) {
+            return new Session(ConnectionState.CONNECTING, settings, transport, settings.nickname, null, null)
+                    .withSettings(settings);
+        }
 
-    public IrcConnection(SBuildServer bs, IrcSettings is) {
-        this.server = bs;
-        settings = is;
-        currentNickname = settings.nickname;
+        Session withState(ConnectionState state) {
+            return new Session(state, settings, transport, nickname, channels, router);
+        }
+
+        Session withNickname(String nickname) {
+            return new Session(state, settings, transport, nickname, channels, router);
+        }
 
-        connection = createConnection(settings);
-        connection.addTrustManager(new SSLDefaultTrustManager());
-        connection.addIRCEventListener(this);
+        /**
+         * A new transport registers with the configured nickname again.
+         */
+        Session withTransport(IrcTransport transport) {
+            return new Session(state, settings, transport, settings.nickname, channels, router);
+        }
+
+        Session withSettings(IrcSettings settings) {
+            Set<Channel> channels = Collections.unmodifiableSet(new LinkedHashSet<Channel>(settings.channels));
+            return new Session(state, settings, transport, nickname, channels, new ChannelRouter(channels));
+        }
+    }
 
-        for (Channel channel : settings.channels)
-            channels.add(channel);
+    private static final class PendingMail {
+        final String nick;
+        final Priority priority;
+        final String text;
 
-        tryConnect();
+        PendingMail(String nick, Priority priority, String text) {
+            this.nick = nick;
+            this.priority = priority;
+            this.text = text;
+        }
+    }
 
-        bs.addListener(new BuildServerAdapter() {
+    private final EventLoop loop;
+    private final AtomicReference<Session> session;
+    /** Shared by all connections to the server so TLS sessions get resumed */
+    private SSLContext sslContext;
+    private ScheduledExecutorService scheduler;
+    private Backoff backoff;
+    private final ServerSupport support = new ServerSupport();
+    private Presence presence;
+    private Watchdog watchdog;
+    private ScheduledFuture<?> presencePoll;
+    private Mailbox mailbox;
+    /** Mail for offline nicks, in the order it came, until the scheduler stores it */
+    private final ConcurrentLinkedQueue<PendingMail> pendingMail = new ConcurrentLinkedQueue<PendingMail>();
+    private final Runnable storeMail = new Runnable() {
+        @Override
+        public void run() {
+            storePendingMail();
+        }
+    };
+    private SBuildServer server;
+    private OutboundQueue outbound;
+    private Digest digest;
+    private CommandExecutor commands;
+    private CommandRegistry registry;
+    private BuildServerAdapter serverListener;
+    private Metrics metrics;
+
+    /**
+     * @param dataDir where networks keep their files, each in a directory
+     *                named after it
+     */
+    public IrcConnection(SBuildServer bs, IrcSettings settings, Metrics metrics, CommandRegistry registry,
+            EventLoop loop, File dataDir) {
+        this.server = bs;
+        this.loop = loop;
+        this.metrics = metrics;
+        this.registry = registry;
+
+        if (!settings.useSsl) {
+            LOG.warn("Connecting to " + settings.name + " in plain text because ssl=\"false\";"
+                    + " earlier versions of the plugin used TLS regardless");
+        }
+
+        // two threads, so a slow connect doesn't hold up digests
+        scheduler = Executors.newScheduledThreadPool(2, Util.daemonThreads("IRC scheduler " + settings.name));
+        backoff = new Backoff(TimeUnit.SECONDS.toMillis(settings.reconnectInitialDelay),
+                TimeUnit.SECONDS.toMillis(settings.reconnectMaxDelay));
+        session = new AtomicReference<Session>(Session.create(settings, createConnection(settings)));
+
+        File networkDir = new File(dataDir, settings.name.replaceAll("[^A-Za-z0-9._-]", "_"));
+        final Journal journal = new Journal(new File(networkDir, "journal"));
+        outbound = new OutboundQueue(settings.name, settings, new OutboundQueue.Writer() {
             @Override
-            public void serverShutdown() {
-                serverShutdown = true;
-                connectTimer.cancel();
+            public boolean isReady() {
+                Session s = session.get();
+                return s.state == ConnectionState.REGISTERED && s.transport.isConnected();
+            }
 
-                if (connection.isConnected()) {
-                    connection.doQuit("TeamCity Server shutting down...");
-                    connection.close();
+            @Override
+            public OutboundQueue.Receipt write(String target, byte[] message) {
+                final IrcTransport transport = session.get().transport;
+                final long mark = transport.doPrivmsg(target, message);
+                if (mark < 0) {
+                    return null;
                 }
+                return new OutboundQueue.Receipt() {
+                    @Override
+                    public boolean isWritten() {
+                        return transport.isWritten(mark);
+                    }
+
+                    @Override
+                    public boolean isLost() {
+                        // a transport is good for one connection only
+                        return (session.get().transport != transport || !transport.isConnected())
+                                && !transport.isWritten(mark);
+                    }
+                };
+            }
+        }, journal, metrics);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                journal.sync();
+            }
+        }, JOURNAL_SYNC_MILLIS, JOURNAL_SYNC_MILLIS, TimeUnit.MILLISECONDS);
+
+        digest = new Digest(scheduler, outbound);
+        commands = new CommandExecutor(settings.name, settings);
+        presence = new Presence(settings.presenceWatch, new Presence.Sender() {
+            @Override
+            public void send(String line) {
+                session.get().transport.send(line);
+            }
+        }, new Presence.Listener() {
+            @Override
+            public void online(String nick) {
+                deliverMail(nick);
+            }
+        });
+        watchdog = new Watchdog(new Watchdog.Sender() {
+            @Override
+            public void send(String line) {
+                session.get().transport.send(line);
             }
         });
+        metrics.addWatchdog(watchdog);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkLag();
+            }
+        }, WATCHDOG_CHECK_SECONDS, WATCHDOG_CHECK_SECONDS, TimeUnit.SECONDS);
+        mailbox = new Mailbox(networkDir, settings.mailboxPerNick, settings.mailboxExpire);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                mailbox.compact();
+            }
+        }, MAILBOX_COMPACT_MINUTES, MAILBOX_COMPACT_MINUTES, TimeUnit.MINUTES);
+
+        scheduleConnect(0);
+        schedulePresence(settings.presencePoll);
+
+        serverListener = new BuildServerAdapter() {
+            @Override
+            public void serverShutdown() {
+                quit("TeamCity Server shutting down...");
+            }
+
+            @Override
+            public void projectCreated(String projectId) {
+                session.get().router.invalidate(projectId);
+            }
+
+            @Override
+            public void projectPersisted(String projectId) {
+                // covers renames
+                session.get().router.invalidate(projectId);
+            }
+
+            @Override
+            public void projectRemoved(String projectId) {
+                session.get().router.invalidate(projectId);
+            }
+
+            @Override
+            public void serverConfigurationReloaded() {
+                session.get().router.clear();
+            }
+        };
+        bs.addListener(serverListener);
     }
 
-    private SSLIRCConnection createConnection(IrcSettings settings) {
-        return new SSLIRCConnection(settings.hostname,
-                new int[] { settings.port },
-                settings.password,
-                settings.nickname,
-                settings.username,
-                settings.realname);
+    /**
+     * Applies new settings for the same network without reconnecting:
+     * channels are joined or parted, routing is rebuilt and the queue limits
+     * are adjusted in place. Changes to the connection itself (server,
+     * credentials, nickname) need a new IrcConnection, see
+     * {@link IrcSettings#connectionChanged(IrcSettings)}.
+     */
+    public void reconfigure(IrcSettings newSettings) {
+        Session before;
+        Session after;
+        do {
+            before = session.get();
+            after = before.withSettings(newSettings);
+        } while (!session.compareAndSet(before, after));
+
+        IrcSettings oldSettings = before.settings;
+        outbound.reconfigure(newSettings);
+        commands.reconfigure(newSettings);
+        presence.setLimit(newSettings.presenceWatch);
+        mailbox.setLimits(newSettings.mailboxPerNick, newSettings.mailboxExpire);
+        if (newSettings.presencePoll != oldSettings.presencePoll) {
+            schedulePresence(newSettings.presencePoll);
+        }
+        backoff.setDelays(TimeUnit.SECONDS.toMillis(newSettings.reconnectInitialDelay),
+                TimeUnit.SECONDS.toMillis(newSettings.reconnectMaxDelay));
+
+        if (before.state != ConnectionState.REGISTERED) {
+            // onRegistered joins whatever is configured by then
+            return;
+        }
+        changeChannels(after, before.channels);
     }
 
-    public void sendToAllChannels(String message, SProject project) {
-        for(Channel channel : channels) {
-            if(channel.interestedIn(project)) {
-                connection.doPrivmsg(channel.getName(), message);
+    /**
+     * Parts the channels no longer configured and joins the new ones.
+     */
+    private void changeChannels(Session s, Set<Channel> joined) {
+        List<String> part = new ArrayList<String>();
+        for (Channel channel : joined) {
+            if (!s.channels.contains(channel)) {
+                part.add(channel.getName());
             }
         }
+        List<String> join = new ArrayList<String>();
+        for (Channel channel : s.channels) {
+            if (!joined.contains(channel)) {
+                join.add(channel.getName());
+            }
+        }
+
+        if (!part.isEmpty()) {
+            LOG.info("Leaving " + part + " on " + s.settings.name);
+            s.transport.doPart(part);
+        }
+        if (!join.isEmpty()) {
+            LOG.info("Joining " + join + " on " + s.settings.name);
+            s.transport.doJoin(join);
+        }
     }
 
-    public void sendPrivMessage(String nickname, String message) {
-        if (!connection.isConnected())
-            return;
+    private IrcTransport createConnection(IrcSettings settings) {
+        // sends and receives UTF-8, which LineSplitter counts in
+        Events events = new Events();
+        events.transport = new IrcTransport(loop, settings, events, metrics);
+        return events.transport;
+    }
 
-        connection.doPrivmsg(nickname, message);
+    public void sendToAllChannels(String message, SProject project, Priority priority) {
+        List<String> targets = new ArrayList<String>();
+        for(Channel channel : session.get().router.channelsFor(project)) {
+            targets.add(channel.getName());
+        }
+        outbound.offer(priority, targets, message);
     }
 
-    public void sendPrivMessage(Set<String> nicknames, String message) {
-        if (!connection.isConnected())
-            return;
+    /**
+     * Announces a finished build on every interested channel. Channels in
+     * digest mode only get a summary line when their window closes. The
+     * message is formatted and split once per template set, however many
+     * channels use it.
+     */
+    public void sendBuildResult(BuildMessage message, boolean failed, SProject project) {
+        Session s = session.get();
+        IrcSettings settings = s.settings;
+        Priority priority = failed ? Priority.FAILURE : Priority.SUCCESS;
+        Map<TemplateSet, List<String>> targets = new LinkedHashMap<TemplateSet, List<String>>(4);
+        for(Channel channel : s.router.channelsFor(project)) {
+            if(channel.isDigest() && !(failed && channel.isImmediateFailures())) {
+                digest.add(channel, message.getShortName(), failed);
+                continue;
+            }
+
+            TemplateSet templates = settings.templatesFor(channel);
+            List<String> channels = targets.get(templates);
+            if(channels == null) {
+                channels = new ArrayList<String>();
+                targets.put(templates, channels);
+            }
+            channels.add(channel.getName());
+        }
 
+        for(Map.Entry<TemplateSet, List<String>> entry : targets.entrySet()) {
+            for(String line : entry.getKey().format(message)) {
+                outbound.offer(priority, entry.getValue(), line);
+            }
+        }
+    }
+
+    /**
+     * Sends a private message. If the nick is known to be offline, the
+     * message goes to the mailbox instead.
+     */
+    public void sendPrivMessage(String nickname, String message, Priority priority) {
+        if (isOnline(nickname, message, priority)) {
+            outbound.offer(priority, nickname, message);
+        }
+    }
+
+    public void sendPrivMessage(Set<String> nicknames, String message, Priority priority) {
+        List<String> online = new ArrayList<String>(nicknames.size());
         for (String nickname : nicknames) {
-            sendPrivMessage(nickname, message);
+            if (isOnline(nickname, message, priority)) {
+                online.add(nickname);
+            }
         }
+        outbound.offer(priority, online, message);
     }
 
-    private void tryConnect() {
-        if (serverShutdown)
-            return;
+    private boolean isOnline(String nickname, String message, Priority priority) {
+        if (session.get().settings.presencePoll == 0 || presence.isOnline(nickname)) {
+            return true;
+        }
+        metrics.offlineNotifications.incrementAndGet();
+        // this is a build event thread, and compaction holds the mailbox for a while
+        pendingMail.add(new PendingMail(nickname, priority, message));
+        try {
+            scheduler.execute(storeMail);
+        } catch (RejectedExecutionException e) {
+            // shutting down, quit stores it
+        }
+        return false;
+    }
+
+    /**
+     * Moves queued mail into the mailbox. Locked so that mail for a nick is
+     * stored in the order it was sent, whichever scheduler thread runs it.
+     */
+    private void storePendingMail() {
+        synchronized (pendingMail) {
+            PendingMail mail;
+            while ((mail = pendingMail.poll()) != null) {
+                mailbox.add(mail.nick, mail.priority, mail.text);
+            }
+        }
+    }
 
+    /**
+     * Sends what was stored for the nick while it was offline, from the
+     * scheduler: the mailbox writes to disk, so reading it on the network
+     * thread would hold up every network while it compacts.
+     */
+    private void deliverMail(final String nick) {
         try {
-            connection.connect();
-            LOG.info("Connected to IRC server");
-        } catch (Exception ex) {
-            LOG.error("Failed to connect to IRC server", ex);
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendMail(nick);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    /**
+     * Sends the latest few messages for the nick and a count of the rest,
+     * at the lowest priority.
+     */
+    private void sendMail(String nick) {
+        storePendingMail();
+        if (!mailbox.hasMail(nick)) {
+            return;
+        }
+        List<Mailbox.Mail> mail = mailbox.take(nick);
+        if (mail.isEmpty()) {
+            return;
+        }
+
+        int failures = 0;
+        for (Mailbox.Mail message : mail) {
+            if (message.priority == Priority.FAILURE) failures++;
+        }
+        StringBuilder summary = new StringBuilder("While you were away: ").append(mail.size())
+                .append(mail.size() == 1 ? " notification" : " notifications");
+        if (failures > 0) {
+            summary.append(" (").append(failures).append(failures == 1 ? " failure)" : " failures)");
+        }
+        if (mail.size() > MAIL_LINES) {
+            summary.append(", the latest ").append(MAIL_LINES).append(':');
+        } else {
+            summary.append(':');
+        }
+        outbound.offer(Priority.lowest(), nick, summary.toString());
+
+        long now = System.currentTimeMillis();
+        for (Mailbox.Mail message : mail.subList(Math.max(0, mail.size() - MAIL_LINES), mail.size())) {
+            outbound.offer(Priority.lowest(), nick, "[" + age(now - message.time) + " ago] " + message.text);
+        }
+    }
+
+    private static String age(long millis) {
+        long minutes = TimeUnit.MILLISECONDS.toMinutes(millis);
+        if (minutes < 60) {
+            return Math.max(1, minutes) + "m";
+        }
+        if (minutes < 48 * 60) {
+            return minutes / 60 + "h";
+        }
+        return minutes / (24 * 60) + "d";
+    }
+
+    public String getName() {
+        return session.get().settings.name;
+    }
+
+    public IrcSettings getSettings() {
+        return session.get().settings;
+    }
+
+    /**
+     * @return the commands this connection answers, shared by all networks;
+     *         new ones may be registered at any time
+     */
+    public CommandRegistry getCommands() {
+        return registry;
+    }
+
+    public long getDroppedCount() {
+        return outbound.getDroppedCount();
+    }
 
-            // recreate the connection
-            try {
-                connection.close();
-            } catch(Exception e) {
-                // ignore
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public ConnectionState getState() {
+        return session.get().state;
+    }
+
+    /**
+     * Moves to a new state unless we have been closed or the transport has
+     * been replaced.
+     *
+     * @param transport the transport the change is about, null for any
+     * @return the session in the new state, or null if nothing changed
+     */
+    private Session transition(IrcTransport transport, ConnectionState to) {
+        while (true) {
+            Session from = session.get();
+            if (from.state == ConnectionState.CLOSED || (transport != null && from.transport != transport)) {
+                return null;
             }
-            connection = createConnection(settings);
+            Session next = from.withState(to);
+            if (session.compareAndSet(from, next)) {
+                if (from.state != to) {
+                    LOG.debug(from.settings.name + ": " + from.state + " -> " + to);
+                }
+                return next;
+            }
+        }
+    }
 
-            connectTimer.schedule(new TimerTask() {
+    private void scheduleConnect(long delay) {
+        try {
+            scheduler.schedule(new Runnable() {
                 @Override
                 public void run() {
                     tryConnect();
                 }
-            }, 5000); // try again in 5secs
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    private synchronized void schedulePresence(int seconds) {
+        if (presencePoll != null) {
+            presencePoll.cancel(false);
+            presencePoll = null;
+        }
+        if (seconds <= 0) {
+            return;
+        }
+
+        try {
+            presencePoll = scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    pollPresence();
+                }
+            }, seconds, seconds, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    private void pollPresence() {
+        Session s = session.get();
+        if (s.state != ConnectionState.REGISTERED || s.settings.presencePoll == 0) {
+            return;
+        }
+        try {
+            presence.poll(support);
+        } catch (Exception e) {
+            LOG.warn("Presence poll failed on " + s.settings.name, e);
+        }
+    }
+
+    /**
+     * Pings the server now and then, reconnects if it stops answering and
+     * slows sending down while it lags.
+     */
+    private void checkLag() {
+        Session s = session.get();
+        IrcSettings settings = s.settings;
+        if (s.state != ConnectionState.REGISTERED || settings.pingInterval == 0) {
+            return;
+        }
+        if (!watchdog.check(TimeUnit.SECONDS.toNanos(settings.pingInterval),
+                TimeUnit.SECONDS.toNanos(settings.pingTimeout))) {
+            LOG.warn("No PONG from " + settings.name + " in " + settings.pingTimeout + " s, reconnecting");
+            metrics.pingTimeouts.incrementAndGet();
+            scheduleReconnect(s.transport);
+            return;
         }
+        outbound.setLag(watchdog.getLagMillis());
     }
 
-    @Override
-    public void onDisconnected() {
-        if (!serverShutdown) {
-            tryConnect();
+    private void tryConnect() {
+        Session s = transition(null, ConnectionState.CONNECTING);
+        if (s == null)
+            return;
+
+        final IrcTransport conn = s.transport;
+        final String name = s.settings.name;
+        try {
+            conn.connect(s.settings.useSsl ? sslContext(s.settings) : null);
+            LOG.info("Connecting to IRC server " + name);
+        } catch (Exception ex) {
+            LOG.error("Failed to connect to IRC server " + name, ex);
+            scheduleReconnect(conn);
+            return;
+        }
+
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Session s = session.get();
+                    if (s.transport == conn && s.state == ConnectionState.CONNECTING) {
+                        LOG.warn("No welcome from " + name + " after " + REGISTRATION_TIMEOUT_SECONDS + " s");
+                        scheduleReconnect(conn);
+                    }
+                }
+            }, REGISTRATION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down
         }
     }
 
-    @Override
-    public void onError(String msg) {
-        LOG.warn("IRC Error: " + msg);
+    /**
+     * Creates the TLS context on first use, on a scheduler thread as it
+     * reads key stores. Failing here is like failing to connect.
+     */
+    private synchronized SSLContext sslContext(IrcSettings settings) throws IOException {
+        if (sslContext == null) {
+            sslContext = Tls.createContext(settings);
+        }
+        return sslContext;
     }
 
-    @Override
-    public void onError(int error, String msg) {
-        LOG.warn("IRC Error: " + error + " msg: " + msg);
-        if (error == 433) {
-            currentNickname += "_";
-            connection.doNick(currentNickname);
+    /**
+     * Throws away the failed connection and tries again after a delay. A
+     * transport is good for one connection only. Does nothing if the
+     * connection has already been replaced, so reporting the same failure
+     * twice only reconnects once.
+     */
+    private void scheduleReconnect(IrcTransport failed) {
+        IrcTransport fresh = null;
+        Session from;
+        while (true) {
+            from = session.get();
+            if (from.state == ConnectionState.CLOSED || from.transport != failed) {
+                return;
+            }
+            if (fresh == null) {
+                fresh = createConnection(from.settings);
+            }
+            if (session.compareAndSet(from, from.withState(ConnectionState.BACKING_OFF).withTransport(fresh))) {
+                break;
+            }
         }
+        IrcSettings settings = from.settings;
+        LOG.debug(settings.name + ": " + from.state + " -> " + ConnectionState.BACKING_OFF);
+
+        failed.close();
+        outbound.setSource(settings.nickname, settings.username);
+        // the next server may support less
+        support.clear();
+        outbound.setMaxTargets(1);
+        presence.reset();
+        watchdog.reset();
+        outbound.setLag(0);
+
+        metrics.reconnects.incrementAndGet();
+        long delay = backoff.nextDelay();
+        LOG.info("Reconnecting to " + settings.name + " in " + delay + " ms (attempt " + backoff.getAttempts() + ")");
+        scheduleConnect(delay);
     }
 
     private void reply(String target, IRCUser user, String message) {
         String to;
-        if(target.equals(currentNickname)) {
+        if(target.equals(session.get().nickname)) {
             // private message, reply in private
             to = user.getNick();
         } else {
@@ -164,190 +694,270 @@ public class IrcConnection implements IRCEventListener {
             message = user.getNick() + ": " + message;
             to = target;
         }
-        connection.doPrivmsg(to, message);
+        outbound.offer(Priority.REPLY, to, message);
         LOG.info("> " + message + ", " + to);
     }
 
-    private List<String> parseCommand(String command) {
-        Matcher matcher = ARGUMENTS_PATTERN.matcher(command);
+    private void executeCommand(String target, IRCUser user, List<String> args) {
+        List<String> reply = new ArrayList<String>();
 
-        List<String> arguments = new ArrayList<String>();
-        while (matcher.find()) {
-            if (matcher.group(1) != null) {
-                // Add double-quoted string without the quotes
-                arguments.add(matcher.group(1));
-            } else if (matcher.group(2) != null) {
-                // Add single-quoted string without the quotes
-                arguments.add(matcher.group(2));
-            } else {
-                // Add unquoted word
-                arguments.add(matcher.group());
+        Command command = args.isEmpty() ? null : registry.find(args.get(0));
+        if(command == null || command == registry.getHelp()) {
+            if(command == null && !args.isEmpty()) {
+                reply.add("What?");
             }
+            // only what this user may run here
+            registry.getHelp().list(user, getSettings(), reply);
+        } else if(!command.isAllowed(user, getSettings())) {
+            reply.add("You're not allowed to do that");
+        } else if(args.size() - 1 < command.getArity()) {
+            reply.add("Missing parameters");
+            reply.add("    " + command.getUsage());
+        } else {
+            command.execute(user, args.subList(1, args.size()), reply);
+        }
+
+        for(String line : reply) {
+            reply(target, user, line);
         }
-        return arguments;
     }
 
-    @Override
-    public void onPrivmsg(String target, IRCUser user, String message) {
-        LOG.info("< " + message + ", " + target + ", " + user.getNick());
+    /**
+     * Events from one transport. Once the transport has been replaced,
+     * whatever it still reports is ignored, so a late EOF or welcome from
+     * an old connection can't touch the new one.
+     */
+    private final class Events implements IRCEventListener {
 
-        String prefix = currentNickname + ":";
+        /** Set right after the transport is made, before it connects */
+        private IrcTransport transport;
 
-        if(message.startsWith(prefix)) {
-            message = message.substring(prefix.length()).trim();
-        } else if(target.equals(currentNickname)) {
-            // private message
-        } else {
-            // ignore
-            return;
+        private boolean current() {
+            return session.get().transport == transport;
         }
 
-        List<String> args = parseCommand(message);
+        @Override
+        public void onDisconnected() {
+            if (!current()) {
+                return;
+            }
+            LOG.info("Disconnected from " + session.get().settings.name);
+            scheduleReconnect(transport);
+        }
 
-        List<String> reply = new ArrayList<String>();
-        if("status".equals(message)) {
-            if(!server.getRunningBuilds().isEmpty()) {
-                reply.add("Running builds:");
-                for(SRunningBuild build : server.getRunningBuilds()) {
-                    reply.add(" - " + Util.getFullName(build));
-                }
-            } else {
-                reply.add("No running builds");
-            }
-
-            if(!server.getQueue().isQueueEmpty()) {
-                reply.add(server.getQueue().getNumberOfItems() + " queued builds");
-            } else {
-                reply.add("No queued builds");
-            }
-        } else if(message.startsWith("build ")) {
-            if(args.size() > 2) {
-                String projectName  = args.get(1);
-                String typeName     = args.get(2);
-                String branch = null;
-                if(args.size() > 3) branch = args.get(3);
-
-                SProject project = server.getProjectManager().findProjectByName(projectName);
-
-                if(project != null) {
-                    SBuildType buildType = project.findBuildTypeByName(typeName);
-                    if(buildType != null) {
-
-                        if(branch == null) {
-                            buildType.addToQueue(user.getNick());
-                        } else {
-                            BuildPromotionEx promo = ((BuildTypeEx)buildType).createBuildPromotion();
-                            Map<String, String> parameters = new HashMap<String, String>();
-                            parameters.put("PROJECT_BRANCH", branch);
-                            promo.setCustomParameters(parameters);
-                            promo.addToQueue(user.getNick());
-                        }
-                        reply.add("Build queued");
-                    } else {
-                        reply.add("Unknown build type");
+        @Override
+        public void onError(String msg) {
+            if (!current()) {
+                return;
+            }
+            LOG.warn("IRC Error: " + msg);
+        }
+
+        @Override
+        public void onError(int error, String msg) {
+            if (!current()) {
+                return;
+            }
+            LOG.warn("IRC Error: " + error + " msg: " + msg);
+            if (error == ERR_NOMOTD) {
+                pollPresence();
+            }
+            if (error == 433) {
+                Session s;
+                Session renamed;
+                do {
+                    s = session.get();
+                    if (s.transport != transport) {
+                        return;
                     }
-                } else {
-                    reply.add("Unknown project");
-                }
-            } else {
-                reply.add("Missing parameters");
-            }
-        } else if(message.startsWith("show ")) {
-            if(args.size() > 1) {
-                String projectName  = args.get(1);
-                SProject project = server.getProjectManager().findProjectByName(projectName);
-                if(project != null) {
-                    for(SBuildType buildType : project.getBuildTypes()) {
-                        reply.add(buildType.getFullName() + " - " + buildType.getStatus());
+                    renamed = s.withNickname(s.nickname + "_");
+                } while (!session.compareAndSet(s, renamed));
+                outbound.setSource(renamed.nickname, renamed.settings.username);
+                transport.doNick(renamed.nickname);
+            }
+        }
+
+        @Override
+        public void onPrivmsg(final String target, final IRCUser user, final String message) {
+            if (!current()) {
+                return;
+            }
+            final int offset = CommandTokenizer.addressedTo(session.get().nickname, target, message);
+            if(offset < 0) {
+                // not for us
+                return;
+            }
+
+            LOG.info("< " + message + ", " + target + ", " + user.getNick());
+
+            if(!commands.allow(user.getNick())) {
+                LOG.info("Ignoring command from " + user.getNick() + ", too many requests");
+                metrics.commandsRejected.incrementAndGet();
+                return;
+            }
+
+            // this is the event loop thread, run the command elsewhere
+            boolean queued = commands.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        executeCommand(target, user, CommandTokenizer.tokenize(message, offset));
+                    } catch (Exception e) {
+                        LOG.warn("Command '" + message + "' failed", e);
+                        reply(target, user, "Sorry, that failed");
+                    } finally {
+                        metrics.commandLatency.record(System.nanoTime() - start);
                     }
-                } else {
-                    reply.add("Unknown project");
                 }
+            });
+            if(!queued) {
+                metrics.commandsRejected.incrementAndGet();
+                reply(target, user, "I'm busy, try again in a moment");
             }
-        } else {
-            if(!"help".equals(message)) {
-                reply.add("What?");
-            }
-            reply.add("I understand these commands");
-            reply.add("    build <project name> <build type name> [<branch>]");
-            reply.add("        Start a build");
-            reply.add("    help");
-            reply.add("        Show this message");
-            reply.add("    show <project name>");
-            reply.add("        Show the status of the project");
-            reply.add("    status");
-            reply.add("        Show the running and queued builds");
         }
 
-        for(String line : reply) {
-            reply(target, user, line);
+        @Override
+        public void onQuit(IRCUser user, String msg) {
+            if (!current()) {
+                return;
+            }
+            presence.onQuit(user.getNick());
         }
-    }
 
-    @Override
-    public void onQuit(IRCUser arg0, String arg1) {
-    }
+        @Override
+        public void onRegistered() {
+            // join before going REGISTERED, so notifications go out after the JOINs
+            Session s = session.get();
+            if (s.transport != transport) {
+                return;
+            }
+            changeChannels(s, Collections.<Channel>emptySet());
 
-    @Override
-    public void onRegistered() {
-        LOG.info("Joining channels");
-        for(Channel channel : channels) {
-            connection.doJoin(channel.getName());
+            backoff.reset();
+            Session registered = transition(transport, ConnectionState.REGISTERED);
+            if (registered == null) {
+                return;
+            }
+            if (registered.channels != s.channels) {
+                // reconfigured meanwhile, and it left the channels to us
+                changeChannels(registered, s.channels);
+            }
+            outbound.resume();
         }
-    }
 
-    @Override
-    public void onReply(int arg0, String arg1, String arg2) {
-    }
+        @Override
+        public void onReply(int num, String value, String msg) {
+            if (!current()) {
+                return;
+            }
+            if (num == ServerSupport.RPL_ISUPPORT) {
+                // value starts with our nickname
+                int space = value.indexOf(' ');
+                support.update(space < 0 ? "" : value.substring(space + 1));
+                outbound.setMaxTargets(support.getMaxTargets("PRIVMSG"));
+            } else if (num == Presence.RPL_ISON) {
+                presence.onIson(msg);
+            } else if (num == RPL_ENDOFMOTD) {
+                // ISUPPORT is complete, start watching right away
+                pollPresence();
+            }
+        }
 
-    @Override
-    public void onTopic(String arg0, IRCUser arg1, String arg2) {
-    }
+        @Override
+        public void onTopic(String arg0, IRCUser arg1, String arg2) {
+        }
 
-    @Override
-    public void unknown(String arg0, String arg1, String arg2, String arg3) {
-    }
+        @Override
+        public void unknown(String prefix, String command, String middle, String trailing) {
+            if (!current()) {
+                return;
+            }
+            if ("PONG".equals(command)) {
+                // the token is usually trailing, but some servers send it bare
+                String token = trailing.length() > 0 ? trailing : middle.substring(middle.lastIndexOf(' ') + 1);
+                watchdog.onPong(token);
+                outbound.setLag(watchdog.getLagMillis());
+            } else if (Presence.RPL_MONONLINE.equals(command)) {
+                presence.onMonitor(true, trailing);
+            } else if (Presence.RPL_MONOFFLINE.equals(command)) {
+                presence.onMonitor(false, trailing);
+            }
+        }
 
-    @Override
-    public void onInvite(String chan, IRCUser user, String passiveNick) {
-        connection.doJoin(chan);
-    }
+        @Override
+        public void onInvite(String chan, IRCUser user, String passiveNick) {
+            if (!current()) {
+                return;
+            }
+            transport.doJoin(chan);
+        }
 
-    @Override
-    public void onJoin(String arg0, IRCUser arg1) {
-    }
+        @Override
+        public void onJoin(String chan, IRCUser user) {
+            if (!current()) {
+                return;
+            }
+            presence.onJoin(user.getNick());
+            // also for nicks we aren't watching, e.g. mail from before a restart
+            deliverMail(user.getNick());
+        }
 
-    @Override
-    public void onKick(String arg0, IRCUser arg1, String arg2, String arg3) {
-    }
+        @Override
+        public void onKick(String arg0, IRCUser arg1, String arg2, String arg3) {
+        }
 
-    @Override
-    public void onMode(String arg0, IRCUser arg1, IRCModeParser arg2) {
-    }
+        @Override
+        public void onMode(String arg0, IRCUser arg1, IRCModeParser arg2) {
+        }
 
-    @Override
-    public void onMode(IRCUser arg0, String arg1, String arg2) {
-    }
+        @Override
+        public void onMode(IRCUser arg0, String arg1, String arg2) {
+        }
 
-    @Override
-    public void onNick(IRCUser arg0, String arg1) {
-    }
+        @Override
+        public void onNick(IRCUser user, String newNick) {
+            if (!current()) {
+                return;
+            }
+            presence.onNick(user.getNick(), newNick);
+            deliverMail(newNick);
+        }
 
-    @Override
-    public void onNotice(String arg0, IRCUser arg1, String arg2) {
-    }
+        @Override
+        public void onNotice(String arg0, IRCUser arg1, String arg2) {
+        }
 
-    @Override
-    public void onPart(String arg0, IRCUser arg1, String arg2) {
-    }
+        @Override
+        public void onPart(String arg0, IRCUser arg1, String arg2) {
+        }
 
-    @Override
-    public void onPing(String arg0) {
+        @Override
+        public void onPing(String arg0) {
+        }
     }
 
     public void quit(String msg) {
-        if(connection.isConnected()) {
-            connection.doQuit(msg);
+        Session s;
+        do {
+            s = session.get();
+            if (s.state == ConnectionState.CLOSED) {
+                return;
+            }
+        } while (!session.compareAndSet(s, s.withState(ConnectionState.CLOSED)));
+
+        server.removeListener(serverListener);
+        scheduler.shutdownNow();
+        commands.shutdown();
+        digest.flushAll();
+        outbound.close();
+        storePendingMail();
+        mailbox.close();
+        metrics.removeWatchdog(watchdog);
+        if(s.transport.isConnected()) {
+            s.transport.doQuit(msg);
+        } else {
+            s.transport.close();
         }
     }
 
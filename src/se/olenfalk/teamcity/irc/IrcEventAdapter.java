@@ -0,0 +1,230 @@
+package se.olenfalk.teamcity.irc;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.schwering.irc.lib.IRCEventListener;
+import org.schwering.irc.lib.IRCModeParser;
+import org.schwering.irc.lib.IRCUser;
+
+/**
+ * Parses lines from the server and calls the matching
+ * {@link IRCEventListener} method, with the same arguments irclib passes,
+ * so listeners written for irclib work on {@link IrcTransport} unchanged.
+ */
+public class IrcEventAdapter {
+
+    private static final int RPL_WELCOME = 1;
+
+    /** Tags, prefix, command and parameters of one line, the trailing one last */
+    static class Line {
+        /** IRCv3 message tags without the @, or null */
+        final String tags;
+        final String prefix;
+        final String command;
+        final List<String> params;
+        final boolean trailing;
+
+        Line(String tags, String prefix, String command, List<String> params, boolean trailing) {
+            this.tags = tags;
+            this.prefix = prefix;
+            this.command = command;
+            this.params = params;
+            this.trailing = trailing;
+        }
+
+        String param(int i) {
+            return i < params.size() ? params.get(i) : "";
+        }
+
+        /**
+         * @return the tag's value, "" if it has none, or null if the line
+         *         doesn't have the tag. Escapes are left alone.
+         */
+        String tag(String key) {
+            if (tags == null) {
+                return null;
+            }
+            for (String tag : tags.split(";")) {
+                if (tag.equals(key)) {
+                    return "";
+                }
+                if (tag.startsWith(key) && tag.length() > key.length() && tag.charAt(key.length()) == '=') {
+                    return tag.substring(key.length() + 1);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return when the server says the message was sent (server-time),
+         *         in millis, or -1 if it doesn't say
+         */
+        long time() {
+            String time = tag("time");
+            if (time == null) {
+                return -1;
+            }
+            SimpleDateFormat format = new SimpleDateFormat(time.indexOf('.') < 0
+                    ? "yyyy-MM-dd'T'HH:mm:ss'Z'" : "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            try {
+                return format.parse(time).getTime();
+            } catch (ParseException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * @return the trailing parameter, or "" if there is none
+         */
+        String trailing() {
+            return trailing ? params.get(params.size() - 1) : "";
+        }
+
+        /**
+         * @return the parameters before the trailing one, joined by spaces
+         */
+        String middle() {
+            StringBuilder middle = new StringBuilder();
+            int end = trailing ? params.size() - 1 : params.size();
+            for (int i = 0; i < end; i++) {
+                if (i > 0) middle.append(' ');
+                middle.append(params.get(i));
+            }
+            return middle.toString();
+        }
+    }
+
+    static Line parse(String raw) {
+        int i = 0;
+        String tags = null;
+        if (raw.startsWith("@")) {
+            int space = raw.indexOf(' ');
+            if (space < 0) {
+                return null;
+            }
+            tags = raw.substring(1, space);
+            i = space + 1;
+            while (i < raw.length() && raw.charAt(i) == ' ') i++;
+        }
+        String prefix = null;
+        if (raw.startsWith(":", i)) {
+            int space = raw.indexOf(' ', i);
+            if (space < 0) {
+                return null;
+            }
+            prefix = raw.substring(i + 1, space);
+            i = space + 1;
+        }
+        while (i < raw.length() && raw.charAt(i) == ' ') i++;
+
+        int end = raw.indexOf(' ', i);
+        if (end < 0) end = raw.length();
+        String command = raw.substring(i, end).toUpperCase();
+        if (command.length() == 0) {
+            return null;
+        }
+        i = end;
+
+        List<String> params = new ArrayList<String>();
+        boolean trailing = false;
+        while (i < raw.length()) {
+            while (i < raw.length() && raw.charAt(i) == ' ') i++;
+            if (i >= raw.length()) break;
+            if (raw.charAt(i) == ':') {
+                params.add(raw.substring(i + 1));
+                trailing = true;
+                break;
+            }
+            end = raw.indexOf(' ', i);
+            if (end < 0) end = raw.length();
+            params.add(raw.substring(i, end));
+            i = end;
+        }
+        return new Line(tags, prefix, command, params, trailing);
+    }
+
+    static IRCUser user(String prefix) {
+        if (prefix == null) {
+            return new IRCUser(null, null, null);
+        }
+        int bang = prefix.indexOf('!');
+        int at = prefix.indexOf('@', bang < 0 ? 0 : bang);
+        if (bang < 0 && at < 0) {
+            // a server
+            return new IRCUser(prefix, null, null);
+        }
+        String nick = prefix.substring(0, bang >= 0 ? bang : at);
+        String username = bang >= 0 ? prefix.substring(bang + 1, at >= 0 ? at : prefix.length()) : null;
+        String host = at >= 0 ? prefix.substring(at + 1) : null;
+        return new IRCUser(nick, username, host);
+    }
+
+    /**
+     * Calls the listener for one line. PING is answered by the transport.
+     */
+    static void dispatch(Line line, IRCEventListener listener) {
+        String command = line.command;
+        IRCUser user = user(line.prefix);
+
+        if (Character.isDigit(command.charAt(0))) {
+            int num;
+            try {
+                num = Integer.parseInt(command);
+            } catch (NumberFormatException e) {
+                listener.unknown(line.prefix, command, line.middle(), line.trailing());
+                return;
+            }
+            if (num == RPL_WELCOME) {
+                listener.onRegistered();
+            }
+            if (num < 400) {
+                listener.onReply(num, line.middle(), line.trailing());
+            } else if (num < 600) {
+                listener.onError(num, line.trailing());
+            } else {
+                listener.unknown(line.prefix, command, line.middle(), line.trailing());
+            }
+        } else if ("PRIVMSG".equals(command)) {
+            listener.onPrivmsg(line.param(0), user, line.param(1));
+        } else if ("NOTICE".equals(command)) {
+            listener.onNotice(line.param(0), user, line.param(1));
+        } else if ("JOIN".equals(command)) {
+            listener.onJoin(line.param(0), user);
+        } else if ("PART".equals(command)) {
+            listener.onPart(line.param(0), user, line.param(1));
+        } else if ("QUIT".equals(command)) {
+            listener.onQuit(user, line.param(0));
+        } else if ("NICK".equals(command)) {
+            listener.onNick(user, line.param(0));
+        } else if ("KICK".equals(command)) {
+            listener.onKick(line.param(0), user, line.param(1), line.param(2));
+        } else if ("INVITE".equals(command)) {
+            listener.onInvite(line.param(1), user, line.param(0));
+        } else if ("TOPIC".equals(command)) {
+            listener.onTopic(line.param(0), user, line.param(1));
+        } else if ("MODE".equals(command)) {
+            String target = line.param(0);
+            if (target.length() > 0 && "#&+!".indexOf(target.charAt(0)) >= 0) {
+                StringBuilder modes = new StringBuilder();
+                for (int i = 1; i < line.params.size(); i++) {
+                    if (i > 1) modes.append(' ');
+                    modes.append(line.params.get(i));
+                }
+                listener.onMode(target, user, new IRCModeParser(modes.toString()));
+            } else {
+                listener.onMode(user, target, line.param(1));
+            }
+        } else if ("PING".equals(command)) {
+            listener.onPing(line.param(0));
+        } else if ("ERROR".equals(command)) {
+            listener.onError(line.param(0));
+        } else {
+            listener.unknown(line.prefix, command, line.middle(), line.trailing());
+        }
+    }
+}
@@ -1,8 +1,7 @@
 package se.olenfalk.teamcity.irc;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
 
 import jetbrains.buildServer.messages.Status;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
@@ -10,9 +9,6 @@ import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.SBuildServer;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.SRunningBuild;
-import jetbrains.buildServer.serverSide.comments.Comment;
-import jetbrains.buildServer.serverSide.problems.BuildProblem;
-import jetbrains.buildServer.users.SUser;
 import jetbrains.buildServer.util.EventDispatcher;
 
 import org.slf4j.Logger;
@@ -22,67 +18,45 @@ public class IrcEventListener extends BuildServerAdapter {
 
     private static final Logger LOG = LoggerFactory.getLogger(IrcEventListener.class);
 
-    private IrcConnection connection;
+    private volatile List<IrcConnection> connections = Collections.emptyList();
     private SBuildServer server;
+    private Metrics metrics;
 
-    public IrcEventListener(SBuildServer server, EventDispatcher<BuildServerListener> dispatcher) {
+    public IrcEventListener(SBuildServer server, EventDispatcher<BuildServerListener> dispatcher, Metrics metrics) {
         this.server = server;
+        this.metrics = metrics;
 
         LOG.info("Registering EventListener with " + dispatcher);
         dispatcher.addListener(this);
     }
 
-    public IrcConnection getConnection() {
-        return connection;
+    public List<IrcConnection> getConnections() {
+        return connections;
     }
 
-    public void setConnection(IrcConnection connection) {
-        LOG.info("Connection provided to IRC notifier");
-        this.connection = connection;
+    public void setConnections(List<IrcConnection> connections) {
+        LOG.info(connections.size() + " connection(s) provided to IRC notifier");
+        this.connections = Collections.unmodifiableList(connections);
     }
 
-    private List<String> formatRunningBuild(SRunningBuild srb, String state) {
-        List<String> messages = new ArrayList<String>();
-
-        String msg = "Build " + Util.getFullName(srb) + " " + state;
-
-        Comment comment = srb.getBuildComment();
-        if (comment != null) {
-            msg += " (" + comment.getUser().getName() + ": " + comment.getComment() + ")";
-        }
-
-        msg += " (on agent: " + srb.getAgentName() + ")";
-        messages.add(msg);
-
-        List<BuildProblem> problems = srb.getBuildProblems();
-        if (!problems.isEmpty()) {
-            messages.add("Build Problems:");
-            for (BuildProblem buildProblem : problems) {
-                System.out.println(buildProblem.getStringRepresentation());
-                messages.add("    - " + buildProblem.getStringRepresentation());
-            }
-        }
-        return messages;
-    }
-
-    private void doNotifications(List<String> messages, SProject project) {
-        if(connection == null) {
+    private void doNotifications(SRunningBuild srb, boolean failed) {
+        List<IrcConnection> connections = this.connections;
+        if(connections.isEmpty()) {
             return;
         }
 
-        for(String message : messages) {
-            connection.sendToAllChannels(message, project);
+        BuildMessage message = new BuildMessage(failed ? BuildMessage.Event.FAILED : BuildMessage.Event.SUCCEEDED, srb);
+        SProject project = getProject(srb);
+        for(IrcConnection connection : connections) {
+            connection.sendBuildResult(message, failed, project);
         }
     }
 
     @Override
     public void buildFinished(SRunningBuild srb) {
         LOG.info("Build finished " + Util.getFullName(srb));
-        if(srb.getBuildStatus() == Status.ERROR || srb.getBuildStatus() == Status.FAILURE) {
-            doNotifications(formatRunningBuild(srb, "failed"), getProject(srb));
-        } else {
-            doNotifications(formatRunningBuild(srb, "succeeded"), getProject(srb));
-        }
+        metrics.buildEvents.mark();
+        doNotifications(srb, srb.getBuildStatus() == Status.ERROR || srb.getBuildStatus() == Status.FAILURE);
     }
 
     @Override
@@ -1,40 +1,86 @@
 package se.olenfalk.teamcity.irc;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.jdom.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import jetbrains.buildServer.serverSide.MainConfigProcessor;
 import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.ServerPaths;
 
 public class IrcPlugin implements MainConfigProcessor {
 
+    private static final Logger LOG = LoggerFactory.getLogger(IrcPlugin.class);
+
     public static final String PLUGIN_NAME = IrcPlugin.class.getSimpleName().toLowerCase();
 
     private final String version = "1.0.0";
-    private IrcSettings ircSettings = null;
+    private List<IrcSettings> ircSettings = new ArrayList<IrcSettings>();
 
     private SBuildServer server;
-    private IrcEventListener notifier;
-    private IrcConnection conn;
+    private IrcEventListener listener;
+    private Notifier notifier;
+    private Metrics metrics;
+    private CommandRegistry commands;
+    private EventLoop loop;
+    private File dataDir;
+    private Map<String, IrcConnection> connections = new LinkedHashMap<String, IrcConnection>();
 
-    public IrcPlugin(SBuildServer server, IrcEventListener notifier) {
+    public IrcPlugin(SBuildServer server, IrcEventListener listener, Notifier notifier, Metrics metrics,
+            CommandRegistry commands, EventLoop loop, ServerPaths paths) {
         this.server = server;
+        this.dataDir = new File(paths.getPluginDataDirectory(), "irc");
+        this.listener = listener;
         this.notifier = notifier;
+        this.metrics = metrics;
+        this.commands = commands;
+        this.loop = loop;
     }
 
     @Override
     public void readFrom(Element element) {
-        ircSettings = IrcSettings.loadFrom(element);
+        ircSettings = IrcSettings.loadAll(element);
+
+        // keep connections whose server and identity are unchanged, so an
+        // unrelated config edit doesn't cause a reconnect
+        Map<String, IrcConnection> old = connections;
+        connections = new LinkedHashMap<String, IrcConnection>();
+        for(IrcSettings settings : ircSettings) {
+            if(connections.containsKey(settings.name)) {
+                LOG.warn("Duplicate IRC network " + settings.name + ", ignoring");
+                continue;
+            }
 
-        if(conn != null) {
-            conn.quit("Reloading Teamcity config");
+            IrcConnection conn = old.remove(settings.name);
+            if(conn != null && !conn.getSettings().connectionChanged(settings)) {
+                conn.reconfigure(settings);
+            } else {
+                if(conn != null) {
+                    conn.quit("Reconnecting with new settings");
+                }
+                conn = new IrcConnection(server, settings, metrics, commands, loop, dataDir);
+            }
+            connections.put(settings.name, conn);
         }
 
-        conn = new IrcConnection(server, ircSettings);
-        notifier.setConnection(conn);
+        for(IrcConnection conn : old.values()) {
+            conn.quit("Removed from Teamcity config");
+        }
+
+        listener.setConnections(new ArrayList<IrcConnection>(connections.values()));
+        notifier.setConnections(new ArrayList<IrcConnection>(connections.values()));
     }
 
     @Override
     public void writeTo(Element element) {
-        ircSettings.writeTo(element);
+        for(IrcSettings settings : ircSettings) {
+            settings.writeTo(element);
+        }
     }
 }
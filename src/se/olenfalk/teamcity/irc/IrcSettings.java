@@ -2,7 +2,9 @@ package se.olenfalk.teamcity.irc;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import jetbrains.buildServer.serverSide.SProject;
@@ -10,6 +12,7 @@ import jetbrains.buildServer.serverSide.SProject;
 import org.jdom.Attribute;
 import org.jdom.DataConversionException;
 import org.jdom.Element;
+import org.schwering.irc.lib.IRCUser;
 
 public class IrcSettings {
 
@@ -18,10 +21,21 @@ public class IrcSettings {
         private String name;
         private String projects;
         private List<Pattern> patterns;
+        private int digestWindow;
+        private boolean immediateFailures;
+        private String templates;
 
         public Channel(String name, String projects) {
+            this(name, projects, 0, false, null);
+        }
+
+        public Channel(String name, String projects, int digestWindow, boolean immediateFailures,
+                String templates) {
             this.name = name;
             this.projects = projects;
+            this.digestWindow = digestWindow;
+            this.immediateFailures = immediateFailures;
+            this.templates = templates;
 
             this.patterns = new ArrayList<Pattern>();
             if(projects != null) {
@@ -39,6 +53,34 @@ public class IrcSettings {
             return projects;
         }
 
+        /**
+         * @return seconds to collect builds before sending a summary, 0 if
+         *         every build is announced on its own
+         */
+        public int getDigestWindow() {
+            return digestWindow;
+        }
+
+        public boolean isDigest() {
+            return digestWindow > 0;
+        }
+
+        /**
+         * @return true if failed builds skip the digest and are announced
+         *         right away
+         */
+        public boolean isImmediateFailures() {
+            return immediateFailures;
+        }
+
+        /**
+         * @return the name of the template set for this channel, or null for
+         *         the network's default templates
+         */
+        public String getTemplates() {
+            return templates;
+        }
+
         public boolean interestedIn(SProject project) {
             if(patterns.isEmpty()) {
                 // no patterns, interested in everything
@@ -73,6 +115,7 @@ public class IrcSettings {
     }
 
     private static final String IRC = "irc";
+    private static final String NAME = "name";
     private static final String SERVER_CONN = "connection";
     private static final String PORT = "port";
     private static final String SSL = "ssl";
@@ -80,13 +123,75 @@ public class IrcSettings {
     private static final String USERNAME = "username";
     private static final String REALNAME = "realname";
     private static final String PASSWORD = "password";
+    private static final String TLS = "tls";
+    private static final String TRUSTSTORE = "truststore";
+    private static final String TRUSTSTORE_PASSWORD = "truststore-password";
+    private static final String KEYSTORE = "keystore";
+    private static final String KEYSTORE_PASSWORD = "keystore-password";
+    private static final String INSECURE = "insecure";
+    private static final String SASL = "sasl";
+    private static final String MECHANISM = "mechanism";
+    private static final String USER = "user";
     private static final String CHANNELS = "channels";
     private static final String CHANNEL = "channel";
+    private static final String PROJECTS = "projects";
+    private static final String DIGEST = "digest";
+    private static final String IMMEDIATE_FAILURES = "immediate-failures";
+    private static final String FLOOD = "flood";
+    private static final String FLOOD_RATE = "rate";
+    private static final String FLOOD_BURST = "burst";
+    private static final String QUEUE_SIZE = "queue";
+    private static final String OVERFLOW = "overflow";
+    private static final String RECONNECT = "reconnect";
+    private static final String INITIAL_DELAY = "initial-delay";
+    private static final String MAX_DELAY = "max-delay";
+    private static final String REPLAY_LINES = "replay-lines";
+    private static final String REPLAY_BYTES = "replay-bytes";
+    private static final String COMMANDS = "commands";
+    private static final String THREADS = "threads";
+    private static final String RATE = "rate";
+    private static final String BURST = "burst";
+    private static final String OWNERS = "owners";
+    private static final String TEMPLATES = "templates";
+    private static final String TEMPLATE = "template";
+    private static final String EVENT = "event";
+    private static final String MAX_PROBLEMS = "max-problems";
+    private static final String PRESENCE = "presence";
+    private static final String POLL = "poll";
+    private static final String WATCH = "watch";
+    private static final String PING = "ping";
+    private static final String INTERVAL = "interval";
+    private static final String TIMEOUT = "timeout";
+    private static final String SLOW_LAG = "slow-lag";
+    private static final String MAILBOX = "mailbox";
+    private static final String PER_NICK = "per-nick";
+    private static final String EXPIRE = "expire";
 
     private static String DEFAULT_REALNAME = "Teamcity IRC Plugin";
     private static int DEFAULT_PORT = 6667;
-    private static boolean DEFAULT_SSL = false;
-
+    /** Earlier versions always used TLS, whatever the ssl attribute said */
+    private static boolean DEFAULT_SSL = true;
+    private static double DEFAULT_FLOOD_RATE = 0.5;
+    private static int DEFAULT_FLOOD_BURST = 5;
+    private static int DEFAULT_QUEUE_SIZE = 1000;
+    private static OutboundQueue.Overflow DEFAULT_OVERFLOW = OutboundQueue.Overflow.SUMMARIZE;
+    private static int DEFAULT_INITIAL_DELAY = 5;
+    private static int DEFAULT_MAX_DELAY = 300;
+    private static int DEFAULT_REPLAY_LINES = 200;
+    private static long DEFAULT_REPLAY_BYTES = 256 * 1024;
+    private static int DEFAULT_COMMAND_THREADS = 2;
+    private static int DEFAULT_COMMAND_QUEUE_SIZE = 16;
+    private static double DEFAULT_COMMAND_RATE = 0.2;
+    private static int DEFAULT_COMMAND_BURST = 3;
+    private static int DEFAULT_PRESENCE_POLL = 60;
+    private static int DEFAULT_PRESENCE_WATCH = 100;
+    private static int DEFAULT_PING_INTERVAL = 30;
+    private static int DEFAULT_PING_TIMEOUT = 90;
+    private static int DEFAULT_SLOW_LAG = 5;
+    private static int DEFAULT_MAILBOX_PER_NICK = 50;
+    private static int DEFAULT_MAILBOX_EXPIRE = 7;
+
+    public String name;
     public String hostname;
     public int port;
     public boolean useSsl;
@@ -94,15 +199,59 @@ public class IrcSettings {
     public String username;
     public String password;
     public String realname;
+    public String truststore;                // null for the JVM's CAs
+    public String truststorePassword;
+    public String keystore;                  // client certificate, null for none
+    public String keystorePassword;
+    public boolean insecure;                 // accept any certificate for any host
+    public Registration.Sasl saslMechanism;  // null to not use SASL
+    public String saslUser;                  // PLAIN only, defaults to the nickname
+    public String saslPassword;              // PLAIN only
     public List<Channel> channels = new ArrayList<Channel>();
+    public double floodRate = DEFAULT_FLOOD_RATE;   // lines per second
+    public int floodBurst = DEFAULT_FLOOD_BURST;
+    public int queueSize = DEFAULT_QUEUE_SIZE;
+    public OutboundQueue.Overflow overflow = DEFAULT_OVERFLOW;
+    public int reconnectInitialDelay = DEFAULT_INITIAL_DELAY;  // seconds
+    public int reconnectMaxDelay = DEFAULT_MAX_DELAY;          // seconds
+    public int replayLines = DEFAULT_REPLAY_LINES;
+    public long replayBytes = DEFAULT_REPLAY_BYTES;
+    public int commandThreads = DEFAULT_COMMAND_THREADS;
+    public int commandQueueSize = DEFAULT_COMMAND_QUEUE_SIZE;
+    public double commandRate = DEFAULT_COMMAND_RATE;     // commands per second and nick
+    public int commandBurst = DEFAULT_COMMAND_BURST;
+    public int presencePoll = DEFAULT_PRESENCE_POLL;     // seconds, 0 to message nicks blindly
+    public int presenceWatch = DEFAULT_PRESENCE_WATCH;   // nicks
+    public int pingInterval = DEFAULT_PING_INTERVAL;     // seconds, 0 to never ping
+    public int pingTimeout = DEFAULT_PING_TIMEOUT;       // seconds
+    public int slowLag = DEFAULT_SLOW_LAG;               // seconds, 0 to never slow down
+    public int mailboxPerNick = DEFAULT_MAILBOX_PER_NICK; // 0 to drop messages to offline nicks
+    public int mailboxExpire = DEFAULT_MAILBOX_EXPIRE;    // days
+    public String owners;
+    private List<Pattern> ownerPatterns = new ArrayList<Pattern>();
+    public TemplateSet templates = new TemplateSet(null, TemplateSet.DEFAULTS);
+    public Map<String, TemplateSet> namedTemplates = new LinkedHashMap<String, TemplateSet>();
+
+    /**
+     * Reads every &lt;irc&gt; block, one per network. Invalid blocks are
+     * skipped.
+     */
+    public static List<IrcSettings> loadAll(Element element) {
+        List<IrcSettings> networks = new ArrayList<IrcSettings>();
 
-    public static IrcSettings loadFrom(Element element) {
-        IrcSettings ircSettings = new IrcSettings();
-
-        Element srvElement = element.getChild(IRC);
-        if (srvElement == null){
-            return null;
+        @SuppressWarnings("unchecked")
+        List<Element> srvElements = (List<Element>) element.getChildren(IRC);
+        for (Element srvElement : srvElements) {
+            IrcSettings ircSettings = loadFrom(srvElement);
+            if (ircSettings != null) {
+                networks.add(ircSettings);
+            }
         }
+        return networks;
+    }
+
+    public static IrcSettings loadFrom(Element srvElement) {
+        IrcSettings ircSettings = new IrcSettings();
 
         // read connection data
         Element srvConnection = srvElement.getChild(SERVER_CONN);
@@ -114,6 +263,10 @@ public class IrcSettings {
         if (ircSettings.hostname.length() == 0)
             return null;
 
+        ircSettings.name = srvElement.getAttributeValue(NAME);
+        if (ircSettings.name == null || ircSettings.name.trim().length() == 0)
+            ircSettings.name = ircSettings.hostname;
+
         Attribute portAttr = srvConnection.getAttribute(PORT);
         Attribute sslAttr = srvConnection.getAttribute(SSL);
 
@@ -154,6 +307,72 @@ public class IrcSettings {
         else
             ircSettings.realname = DEFAULT_REALNAME;
 
+        Element tlsElement = srvElement.getChild(TLS);
+        if (tlsElement != null) {
+            ircSettings.truststore = tlsElement.getAttributeValue(TRUSTSTORE);
+            ircSettings.truststorePassword = tlsElement.getAttributeValue(TRUSTSTORE_PASSWORD);
+            ircSettings.keystore = tlsElement.getAttributeValue(KEYSTORE);
+            ircSettings.keystorePassword = tlsElement.getAttributeValue(KEYSTORE_PASSWORD);
+            try {
+                Attribute insecureAttr = tlsElement.getAttribute(INSECURE);
+                if (insecureAttr != null)
+                    ircSettings.insecure = insecureAttr.getBooleanValue();
+            } catch (DataConversionException e) {
+                return null;
+            }
+        }
+
+        Element saslElement = srvElement.getChild(SASL);
+        if (saslElement != null) {
+            try {
+                String mechanism = saslElement.getAttributeValue(MECHANISM);
+                ircSettings.saslMechanism = mechanism == null
+                        ? Registration.Sasl.PLAIN : Registration.Sasl.valueOf(mechanism.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            ircSettings.saslUser = saslElement.getAttributeValue(USER);
+            ircSettings.saslPassword = saslElement.getAttributeValue(PASSWORD);
+            if (ircSettings.saslMechanism == Registration.Sasl.PLAIN && ircSettings.saslPassword == null) {
+                return null;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        List<Element> templatesElements = (List<Element>) srvElement.getChildren(TEMPLATES);
+        for (Element templatesElement : templatesElements) {
+            String name = templatesElement.getAttributeValue(NAME);
+            TemplateSet set;
+            if (name == null || name.trim().length() == 0) {
+                set = ircSettings.templates;
+            } else {
+                set = new TemplateSet(name.trim(), ircSettings.templates);
+                ircSettings.namedTemplates.put(set.getName(), set);
+            }
+
+            try {
+                Attribute maxProblemsAttr = templatesElement.getAttribute(MAX_PROBLEMS);
+                if (maxProblemsAttr != null)
+                    set.setMaxProblems(Math.max(0, maxProblemsAttr.getIntValue()));
+            } catch (DataConversionException e) {
+                return null;
+            }
+
+            @SuppressWarnings("unchecked")
+            List<Element> templateElements = (List<Element>) templatesElement.getChildren(TEMPLATE);
+            for (Element templateElement : templateElements) {
+                String event = templateElement.getAttributeValue(EVENT);
+                if (event == null || !TemplateSet.isKey(event)) {
+                    return null;
+                }
+                try {
+                    set.put(event, new MessageTemplate(templateElement.getText()));
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+
         Element channelsElement = srvElement.getChild(CHANNELS);
         if (channelsElement == null) {
             return null;
@@ -166,19 +385,207 @@ public class IrcSettings {
             if (channel.isEmpty()) {
                 continue;
             }
-            String projects = channelElement.getAttributeValue("projects");
-            ircSettings.channels.add(new Channel(channel, projects));
+            String projects = channelElement.getAttributeValue(PROJECTS);
+            String templates = channelElement.getAttributeValue(TEMPLATES);
+            if (templates != null && !ircSettings.namedTemplates.containsKey(templates)) {
+                return null;
+            }
+
+            int digestWindow = 0;
+            boolean immediateFailures = false;
+            try {
+                Attribute digestAttr = channelElement.getAttribute(DIGEST);
+                Attribute immediateAttr = channelElement.getAttribute(IMMEDIATE_FAILURES);
+                if (digestAttr != null)
+                    digestWindow = Math.max(0, digestAttr.getIntValue());
+                if (immediateAttr != null)
+                    immediateFailures = immediateAttr.getBooleanValue();
+            } catch (DataConversionException e) {
+                return null;
+            }
+
+            ircSettings.channels.add(new Channel(channel, projects, digestWindow, immediateFailures, templates));
         }
 
         if (ircSettings.channels.isEmpty()) {
             return null;
         }
 
+        Element floodElement = srvElement.getChild(FLOOD);
+        if (floodElement != null) {
+            try {
+                Attribute rateAttr = floodElement.getAttribute(FLOOD_RATE);
+                Attribute burstAttr = floodElement.getAttribute(FLOOD_BURST);
+                Attribute queueAttr = floodElement.getAttribute(QUEUE_SIZE);
+                if (rateAttr != null)
+                    ircSettings.floodRate = rateAttr.getDoubleValue();
+                if (burstAttr != null)
+                    ircSettings.floodBurst = burstAttr.getIntValue();
+                if (queueAttr != null)
+                    ircSettings.queueSize = Math.max(1, queueAttr.getIntValue());
+
+                String overflow = floodElement.getAttributeValue(OVERFLOW);
+                if (overflow != null)
+                    ircSettings.overflow = OutboundQueue.Overflow.valueOf(overflow.trim().toUpperCase());
+            } catch (DataConversionException e) {
+                return null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        Element reconnectElement = srvElement.getChild(RECONNECT);
+        if (reconnectElement != null) {
+            try {
+                Attribute initialAttr = reconnectElement.getAttribute(INITIAL_DELAY);
+                Attribute maxAttr = reconnectElement.getAttribute(MAX_DELAY);
+                Attribute linesAttr = reconnectElement.getAttribute(REPLAY_LINES);
+                Attribute bytesAttr = reconnectElement.getAttribute(REPLAY_BYTES);
+                if (initialAttr != null)
+                    ircSettings.reconnectInitialDelay = Math.max(1, initialAttr.getIntValue());
+                if (maxAttr != null)
+                    ircSettings.reconnectMaxDelay = Math.max(1, maxAttr.getIntValue());
+                if (linesAttr != null)
+                    ircSettings.replayLines = Math.max(0, linesAttr.getIntValue());
+                if (bytesAttr != null)
+                    ircSettings.replayBytes = Math.max(0, bytesAttr.getLongValue());
+            } catch (DataConversionException e) {
+                return null;
+            }
+        }
+
+        Element ownersElement = srvElement.getChild(OWNERS);
+        if (ownersElement != null && ownersElement.getTextTrim().length() > 0) {
+            ircSettings.owners = ownersElement.getTextTrim();
+            for (String owner : ircSettings.owners.split("\\s+")) {
+                ircSettings.ownerPatterns.add(Pattern.compile(owner, Pattern.CASE_INSENSITIVE));
+            }
+        }
+
+        Element commandsElement = srvElement.getChild(COMMANDS);
+        if (commandsElement != null) {
+            try {
+                Attribute threadsAttr = commandsElement.getAttribute(THREADS);
+                Attribute queueAttr = commandsElement.getAttribute(QUEUE_SIZE);
+                Attribute rateAttr = commandsElement.getAttribute(RATE);
+                Attribute burstAttr = commandsElement.getAttribute(BURST);
+                if (threadsAttr != null)
+                    ircSettings.commandThreads = Math.max(1, threadsAttr.getIntValue());
+                if (queueAttr != null)
+                    ircSettings.commandQueueSize = Math.max(1, queueAttr.getIntValue());
+                if (rateAttr != null)
+                    ircSettings.commandRate = rateAttr.getDoubleValue();
+                if (burstAttr != null)
+                    ircSettings.commandBurst = burstAttr.getIntValue();
+            } catch (DataConversionException e) {
+                return null;
+            }
+        }
+
+        Element presenceElement = srvElement.getChild(PRESENCE);
+        if (presenceElement != null) {
+            try {
+                Attribute pollAttr = presenceElement.getAttribute(POLL);
+                Attribute watchAttr = presenceElement.getAttribute(WATCH);
+                if (pollAttr != null)
+                    ircSettings.presencePoll = Math.max(0, pollAttr.getIntValue());
+                if (watchAttr != null)
+                    ircSettings.presenceWatch = Math.max(1, watchAttr.getIntValue());
+            } catch (DataConversionException e) {
+                return null;
+            }
+        }
+
+        Element pingElement = srvElement.getChild(PING);
+        if (pingElement != null) {
+            try {
+                Attribute intervalAttr = pingElement.getAttribute(INTERVAL);
+                Attribute timeoutAttr = pingElement.getAttribute(TIMEOUT);
+                Attribute slowLagAttr = pingElement.getAttribute(SLOW_LAG);
+                if (intervalAttr != null)
+                    ircSettings.pingInterval = Math.max(0, intervalAttr.getIntValue());
+                if (timeoutAttr != null)
+                    ircSettings.pingTimeout = Math.max(1, timeoutAttr.getIntValue());
+                if (slowLagAttr != null)
+                    ircSettings.slowLag = Math.max(0, slowLagAttr.getIntValue());
+            } catch (DataConversionException e) {
+                return null;
+            }
+        }
+
+        Element mailboxElement = srvElement.getChild(MAILBOX);
+        if (mailboxElement != null) {
+            try {
+                Attribute perNickAttr = mailboxElement.getAttribute(PER_NICK);
+                Attribute expireAttr = mailboxElement.getAttribute(EXPIRE);
+                if (perNickAttr != null)
+                    ircSettings.mailboxPerNick = Math.max(0, perNickAttr.getIntValue());
+                if (expireAttr != null)
+                    ircSettings.mailboxExpire = Math.max(1, expireAttr.getIntValue());
+            } catch (DataConversionException e) {
+                return null;
+            }
+        }
+
         return ircSettings;
     }
 
+    /**
+     * @return true if the user's nick!user@host matches one of the owner
+     *         patterns
+     */
+    public boolean isOwner(IRCUser user) {
+        String mask = user.getNick() + "!" + user.getUsername() + "@" + user.getHost();
+        for (Pattern pattern : ownerPatterns) {
+            if (pattern.matcher(mask).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the templates to format build messages for the channel
+     */
+    public TemplateSet templatesFor(Channel channel) {
+        if (channel.getTemplates() != null) {
+            TemplateSet set = namedTemplates.get(channel.getTemplates());
+            if (set != null) {
+                return set;
+            }
+        }
+        return templates;
+    }
+
+    /**
+     * @return true if switching from these settings to {@code other} needs a
+     *         new connection to the server
+     */
+    public boolean connectionChanged(IrcSettings other) {
+        return !equal(hostname, other.hostname)
+                || port != other.port
+                || useSsl != other.useSsl
+                || !equal(nickname, other.nickname)
+                || !equal(username, other.username)
+                || !equal(password, other.password)
+                || !equal(realname, other.realname)
+                || !equal(truststore, other.truststore)
+                || !equal(truststorePassword, other.truststorePassword)
+                || !equal(keystore, other.keystore)
+                || !equal(keystorePassword, other.keystorePassword)
+                || insecure != other.insecure
+                || saslMechanism != other.saslMechanism
+                || !equal(saslUser, other.saslUser)
+                || !equal(saslPassword, other.saslPassword);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
     public void writeTo(Element element) {
         Element irc = new Element(IRC);
+        if (!name.equals(hostname)) irc.setAttribute(NAME, name);
         Element connection = new Element(SERVER_CONN);
         connection.setAttribute(SSL, Boolean.toString(useSsl));
         connection.setAttribute(PORT, Integer.toString(port));
@@ -191,17 +598,101 @@ public class IrcSettings {
 
         irc.addContent(new Element(PASSWORD).setText(password));
 
+        if (truststore != null || keystore != null || insecure) {
+            Element tls = new Element(TLS);
+            if (truststore != null) tls.setAttribute(TRUSTSTORE, truststore);
+            if (truststorePassword != null) tls.setAttribute(TRUSTSTORE_PASSWORD, truststorePassword);
+            if (keystore != null) tls.setAttribute(KEYSTORE, keystore);
+            if (keystorePassword != null) tls.setAttribute(KEYSTORE_PASSWORD, keystorePassword);
+            if (insecure) tls.setAttribute(INSECURE, "true");
+            irc.addContent(tls);
+        }
+
+        if (saslMechanism != null) {
+            Element sasl = new Element(SASL);
+            sasl.setAttribute(MECHANISM, saslMechanism.name().toLowerCase());
+            if (saslUser != null) sasl.setAttribute(USER, saslUser);
+            if (saslPassword != null) sasl.setAttribute(PASSWORD, saslPassword);
+            irc.addContent(sasl);
+        }
+
         Element channels = new Element(CHANNELS);
         for(Channel channel : this.channels) {
             Element channelElm = new Element(CHANNEL);
             channelElm.setText(channel.getName());
-            if(channel.getProjects() != null) channelElm.setAttribute("projects", channel.getProjects());
+            if(channel.getProjects() != null) channelElm.setAttribute(PROJECTS, channel.getProjects());
+            if(channel.getTemplates() != null) channelElm.setAttribute(TEMPLATES, channel.getTemplates());
+            if(channel.isDigest()) {
+                channelElm.setAttribute(DIGEST, Integer.toString(channel.getDigestWindow()));
+                channelElm.setAttribute(IMMEDIATE_FAILURES, Boolean.toString(channel.isImmediateFailures()));
+            }
 
             channels.addContent(channelElm);
         }
 
         irc.addContent(channels);
 
+        writeTemplates(irc, templates);
+        for (TemplateSet set : namedTemplates.values()) {
+            writeTemplates(irc, set);
+        }
+
+        Element flood = new Element(FLOOD);
+        flood.setAttribute(FLOOD_RATE, Double.toString(floodRate));
+        flood.setAttribute(FLOOD_BURST, Integer.toString(floodBurst));
+        flood.setAttribute(QUEUE_SIZE, Integer.toString(queueSize));
+        flood.setAttribute(OVERFLOW, overflow.name().toLowerCase());
+        irc.addContent(flood);
+
+        Element reconnect = new Element(RECONNECT);
+        reconnect.setAttribute(INITIAL_DELAY, Integer.toString(reconnectInitialDelay));
+        reconnect.setAttribute(MAX_DELAY, Integer.toString(reconnectMaxDelay));
+        reconnect.setAttribute(REPLAY_LINES, Integer.toString(replayLines));
+        reconnect.setAttribute(REPLAY_BYTES, Long.toString(replayBytes));
+        irc.addContent(reconnect);
+
+        Element commands = new Element(COMMANDS);
+        commands.setAttribute(THREADS, Integer.toString(commandThreads));
+        commands.setAttribute(QUEUE_SIZE, Integer.toString(commandQueueSize));
+        commands.setAttribute(RATE, Double.toString(commandRate));
+        commands.setAttribute(BURST, Integer.toString(commandBurst));
+        irc.addContent(commands);
+
+        Element presence = new Element(PRESENCE);
+        presence.setAttribute(POLL, Integer.toString(presencePoll));
+        presence.setAttribute(WATCH, Integer.toString(presenceWatch));
+        irc.addContent(presence);
+
+        Element ping = new Element(PING);
+        ping.setAttribute(INTERVAL, Integer.toString(pingInterval));
+        ping.setAttribute(TIMEOUT, Integer.toString(pingTimeout));
+        ping.setAttribute(SLOW_LAG, Integer.toString(slowLag));
+        irc.addContent(ping);
+
+        Element mailbox = new Element(MAILBOX);
+        mailbox.setAttribute(PER_NICK, Integer.toString(mailboxPerNick));
+        mailbox.setAttribute(EXPIRE, Integer.toString(mailboxExpire));
+        irc.addContent(mailbox);
+
+        if (owners != null) irc.addContent(new Element(OWNERS).setText(owners));
+
         element.addContent(irc);
     }
+
+    private static void writeTemplates(Element irc, TemplateSet set) {
+        if (set.getName() == null && set.getTemplates().isEmpty() && set.getOwnMaxProblems() < 0) {
+            return;
+        }
+
+        Element templates = new Element(TEMPLATES);
+        if (set.getName() != null) templates.setAttribute(NAME, set.getName());
+        if (set.getOwnMaxProblems() >= 0) templates.setAttribute(MAX_PROBLEMS, Integer.toString(set.getOwnMaxProblems()));
+        for (Map.Entry<String, MessageTemplate> entry : set.getTemplates().entrySet()) {
+            Element template = new Element(TEMPLATE);
+            template.setAttribute(EVENT, entry.getKey());
+            template.setText(entry.getValue().getSource());
+            templates.addContent(template);
+        }
+        irc.addContent(templates);
+    }
 }
@@ -0,0 +1,597 @@
+package se.olenfalk.teamcity.irc;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import org.schwering.irc.lib.IRCEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One connection to an IRC server, plaintext or TLS, driven by the shared
+ * {@link EventLoop}.
+ * Incoming lines are passed to an {@link IRCEventListener} on the loop
+ * thread through {@link IrcEventAdapter}, so listeners must not block.
+ *
+ * The send methods may be called from any thread; lines are queued and
+ * written by the loop. A transport is used for one connection only, make a
+ * new one to reconnect.
+ */
+public class IrcTransport implements EventLoop.Handler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IrcTransport.class);
+
+    /** Longer lines from the server are dropped */
+    private static final int MAX_LINE = 8 * 1024;
+    private static final int PLAIN_BUFFER_SIZE = 16 * 1024;
+    /** What the server takes in a line from us, without CR LF */
+    private static final int MAX_SEND = 510;
+    /** Commands the server stamps as older than this are history, not meant for us */
+    private static final long STALE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final String UTF8 = "UTF-8";
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final EventLoop loop;
+    private final IrcSettings settings;
+    private final IRCEventListener listener;
+    private final Metrics metrics;
+    private final Registration registration;
+    private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<ByteBuffer>();
+    /** Bytes ever queued, guarded by the queue so marks follow queue order */
+    private long queued = 0;
+    /** Bytes of queued lines that have gone to the socket, see {@link #isWritten(long)} */
+    private volatile long written = 0;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            if (key != null && key.isValid() && channel.isConnected()) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    failed(e);
+                }
+            }
+        }
+    };
+    private volatile boolean connected = false;
+    private volatile boolean closed = false;
+    private volatile boolean quitting = false;
+
+    // loop thread only
+    private SocketChannel channel;
+    private SelectionKey key;
+    private SSLEngine engine;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private ByteBuffer appOut;
+    private ByteBuffer head;
+    /** Bytes of queued lines taken from the queue */
+    private long taken = 0;
+    private ByteBuffer registrationLines;
+    private byte[] line = new byte[512];
+    private int lineLength = 0;
+    private boolean lineTooLong = false;
+
+    public IrcTransport(EventLoop loop, IrcSettings settings, IRCEventListener listener, Metrics metrics) {
+        this.loop = loop;
+        this.settings = settings;
+        this.listener = listener;
+        this.metrics = metrics;
+        this.registration = new Registration(settings, new Registration.Sender() {
+            @Override
+            public void send(String line) {
+                IrcTransport.this.send(line);
+            }
+        });
+    }
+
+    /**
+     * Starts connecting and registering. Resolves the host name on the
+     * calling thread; everything after that happens on the loop, and a
+     * failure there is reported through onDisconnected.
+     *
+     * @param context for TLS, see {@link Tls}, or null to connect in plain
+     *                text
+     */
+    public void connect(final SSLContext context) throws IOException {
+        final InetSocketAddress address = new InetSocketAddress(settings.hostname, settings.port);
+        if (address.isUnresolved()) {
+            throw new IOException("Unknown host " + settings.hostname);
+        }
+
+        // goes out before anything sent already
+        StringBuilder lines = new StringBuilder(registration.start()).append("\r\n");
+        if (settings.password != null && settings.password.length() > 0) {
+            lines.append("PASS ").append(stripBreaks(settings.password)).append("\r\n");
+        }
+        lines.append("NICK ").append(stripBreaks(settings.nickname)).append("\r\n");
+        lines.append("USER ").append(stripBreaks(settings.username)).append(" 0 * :")
+                .append(stripBreaks(settings.realname)).append("\r\n");
+        registrationLines = ByteBuffer.wrap(lines.toString().getBytes(UTF8));
+
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    open(address, context);
+                } catch (IOException e) {
+                    failed(e);
+                }
+            }
+        });
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Queues a raw line, without the line break.
+     */
+    public void send(String line) {
+        if (closed) {
+            return;
+        }
+        try {
+            enqueue(ByteBuffer.wrap((stripBreaks(line) + "\r\n").getBytes(UTF8)));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sends text that is already encoded, so a line going to several
+     * targets is only encoded once. The text must not hold line breaks.
+     *
+     * @return a mark for {@link #isWritten(long)}, or -1 if the transport
+     *         is closed
+     */
+    public long doPrivmsg(String target, byte[] message) {
+        if (closed) {
+            return -1;
+        }
+        byte[] prefix;
+        try {
+            prefix = ("PRIVMSG " + stripBreaks(target) + " :").getBytes(UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer line = ByteBuffer.allocate(prefix.length + message.length + 2);
+        line.put(prefix).put(message).put((byte) '\r').put((byte) '\n');
+        line.flip();
+        return enqueue(line);
+    }
+
+    /**
+     * @return whether the line that got the mark, and everything queued
+     *         before it, has been written to the socket
+     */
+    public boolean isWritten(long mark) {
+        return written >= mark;
+    }
+
+    private long enqueue(ByteBuffer line) {
+        long mark;
+        synchronized (queue) {
+            queued += line.remaining();
+            mark = queued;
+            queue.add(line);
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(flushTask);
+        }
+        return mark;
+    }
+
+    public void doJoin(String channel) {
+        send("JOIN " + channel);
+    }
+
+    /**
+     * Joins the channels with as few lines as fit.
+     */
+    public void doJoin(Collection<String> channels) {
+        sendList("JOIN ", channels);
+    }
+
+    public void doPart(String channel) {
+        send("PART " + channel);
+    }
+
+    public void doPart(Collection<String> channels) {
+        sendList("PART ", channels);
+    }
+
+    private void sendList(String command, Collection<String> items) {
+        StringBuilder line = new StringBuilder(command);
+        int bytes = command.length();
+        for (String item : items) {
+            int length = LineSplitter.utf8Length(item, 0, item.length());
+            if (line.length() > command.length() && bytes + 1 + length > MAX_SEND) {
+                send(line.toString());
+                line.setLength(command.length());
+                bytes = command.length();
+            }
+            if (line.length() > command.length()) {
+                line.append(',');
+                bytes++;
+            }
+            line.append(item);
+            bytes += length;
+        }
+        if (line.length() > command.length()) {
+            send(line.toString());
+        }
+    }
+
+    public void doNick(String nick) {
+        send("NICK " + nick);
+    }
+
+    /**
+     * Sends QUIT and closes once it is written, without calling
+     * onDisconnected.
+     */
+    public void doQuit(String message) {
+        send("QUIT :" + message);
+        quitting = true;
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!hasQueued() && (netOut == null || netOut.position() == 0)) {
+                    release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes at once, dropping anything not yet written, without calling
+     * onDisconnected.
+     */
+    public void close() {
+        closed = true;
+        connected = false;
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                release();
+            }
+        });
+    }
+
+    @Override
+    public void ready(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            finishConnect();
+        }
+        if (key.isValid() && key.isReadable()) {
+            read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    @Override
+    public void failed(Exception e) {
+        if (closed) {
+            return;
+        }
+        if (!quitting) {
+            LOG.warn("Connection to " + settings.name + " failed: " + e);
+        }
+        disconnected();
+    }
+
+    private void open(InetSocketAddress address, SSLContext context) throws IOException {
+        if (closed) {
+            return;
+        }
+        head = registrationLines;
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setKeepAlive(true);
+        if (context != null) {
+            engine = Tls.createEngine(context, settings);
+            netIn = loop.acquire(engine.getSession().getPacketBufferSize());
+            netOut = loop.acquire(engine.getSession().getPacketBufferSize());
+            appIn = loop.acquire(engine.getSession().getApplicationBufferSize());
+            appOut = loop.acquire(engine.getSession().getApplicationBufferSize());
+        } else {
+            netOut = loop.acquire(PLAIN_BUFFER_SIZE);
+        }
+
+        if (channel.connect(address)) {
+            key = loop.register(channel, SelectionKey.OP_READ, this);
+            connected();
+        } else {
+            key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+        }
+    }
+
+    private void finishConnect() throws IOException {
+        if (channel.finishConnect()) {
+            key.interestOps(SelectionKey.OP_READ);
+            connected();
+        }
+    }
+
+    private void connected() throws IOException {
+        connected = true;
+        if (engine != null) {
+            engine.beginHandshake();
+        }
+        flush();
+    }
+
+    private void read() throws IOException {
+        if (engine == null) {
+            ByteBuffer buffer = loop.readBuffer();
+            if (channel.read(buffer) < 0) {
+                disconnected();
+                return;
+            }
+            buffer.flip();
+            received(buffer);
+            return;
+        }
+
+        if (channel.read(netIn) < 0) {
+            disconnected();
+            return;
+        }
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            appIn.flip();
+            received(appIn);
+            appIn.clear();
+
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                disconnected();
+                return;
+            }
+            if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                runTasks();
+            }
+            if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP
+                    || result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                // handshake data to send, or queued lines waiting for the handshake
+                flush();
+            }
+            if (key == null) {
+                // closed while handling what was read
+                return;
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                    || (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                        && engine.getHandshakeStatus() != HandshakeStatus.NEED_TASK)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes as much of the queue as the socket takes, waiting for OP_WRITE
+     * for the rest.
+     */
+    private void flush() throws IOException {
+        if (engine == null) {
+            while (true) {
+                fill(netOut);
+                if (!writeNet() || !hasQueued()) {
+                    return;
+                }
+            }
+        }
+
+        while (key != null) {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_TASK) {
+                runTasks();
+                continue;
+            }
+
+            SSLEngineResult result;
+            if (status == HandshakeStatus.NEED_WRAP) {
+                result = engine.wrap(EMPTY, netOut);
+            } else if (status == HandshakeStatus.NOT_HANDSHAKING || status == HandshakeStatus.FINISHED) {
+                fill(appOut);
+                appOut.flip();
+                if (!appOut.hasRemaining()) {
+                    appOut.clear();
+                    break;
+                }
+                result = engine.wrap(appOut, netOut);
+                appOut.compact();
+            } else {
+                // waiting for the server
+                break;
+            }
+
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS connection closed");
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !writeNet()) {
+                return;
+            }
+        }
+        if (key != null) {
+            writeNet();
+        }
+    }
+
+    /**
+     * @return true if everything in netOut was written
+     */
+    private boolean writeNet() throws IOException {
+        netOut.flip();
+        channel.write(netOut);
+        boolean done = !netOut.hasRemaining();
+        netOut.compact();
+
+        if (done) {
+            if ((head == null || !head.hasRemaining()) && (appOut == null || appOut.position() == 0)) {
+                // nothing taken from the queue is left in our buffers
+                written = taken;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            if (quitting && !hasQueued()) {
+                release();
+            }
+        } else {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        return done;
+    }
+
+    private void fill(ByteBuffer out) {
+        while (out.hasRemaining()) {
+            if (head == null || !head.hasRemaining()) {
+                head = queue.poll();
+                if (head == null) {
+                    return;
+                }
+                taken += head.remaining();
+            }
+            int n = Math.min(out.remaining(), head.remaining());
+            ByteBuffer part = head.duplicate();
+            part.limit(part.position() + n);
+            out.put(part);
+            head.position(head.position() + n);
+        }
+    }
+
+    private boolean hasQueued() {
+        return (head != null && head.hasRemaining()) || !queue.isEmpty();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Splits the bytes into lines and dispatches them.
+     */
+    private void received(ByteBuffer buffer) {
+        while (buffer.hasRemaining() && key != null) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                if (!lineTooLong) {
+                    int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                    dispatch(decode(line, length));
+                }
+                lineLength = 0;
+                lineTooLong = false;
+            } else if (lineLength < MAX_LINE) {
+                if (lineLength == line.length) {
+                    byte[] bigger = new byte[Math.min(MAX_LINE, line.length * 2)];
+                    System.arraycopy(line, 0, bigger, 0, lineLength);
+                    line = bigger;
+                }
+                line[lineLength++] = b;
+            } else {
+                lineTooLong = true;
+            }
+        }
+    }
+
+    private void dispatch(String raw) {
+        IrcEventAdapter.Line parsed = IrcEventAdapter.parse(raw);
+        if (parsed == null) {
+            return;
+        }
+        metrics.linesReceived.mark();
+        if ("PING".equals(parsed.command)) {
+            send("PONG :" + parsed.param(0));
+        }
+        if ("PRIVMSG".equals(parsed.command) && registration.isEnabled("server-time")) {
+            long time = parsed.time();
+            if (time >= 0 && System.currentTimeMillis() - time > STALE_MILLIS) {
+                // played back history, don't run old commands again
+                LOG.debug("Ignoring old message on " + settings.name + ": " + raw);
+                return;
+            }
+        }
+        try {
+            if (registration.handle(parsed)) {
+                return;
+            }
+            IrcEventAdapter.dispatch(parsed, listener);
+        } catch (RuntimeException e) {
+            LOG.warn("Handling '" + raw + "' from " + settings.name + " failed", e);
+        }
+    }
+
+    private void disconnected() {
+        boolean notify = !closed && !quitting;
+        release();
+        if (notify) {
+            listener.onDisconnected();
+        }
+    }
+
+    /**
+     * Closes the socket and returns the buffers. Loop thread only.
+     */
+    private void release() {
+        closed = true;
+        connected = false;
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        loop.release(netIn);
+        loop.release(netOut);
+        loop.release(appIn);
+        loop.release(appOut);
+        netIn = netOut = appIn = appOut = null;
+        head = null;
+        queue.clear();
+    }
+
+    private static String decode(byte[] bytes, int length) {
+        try {
+            return new String(bytes, 0, length, UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String stripBreaks(String line) {
+        if (line.indexOf('\r') < 0 && line.indexOf('\n') < 0) {
+            return line;
+        }
+        return line.replace('\r', ' ').replace('\n', ' ');
+    }
+}
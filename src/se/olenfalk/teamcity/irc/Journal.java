@@ -0,0 +1,382 @@
+package se.olenfalk.teamcity.irc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.olenfalk.teamcity.irc.OutboundQueue.Message;
+
+/**
+ * Write-ahead journal for the outbound queue, so notifications survive a
+ * restart of TeamCity or of the connection.
+ *
+ * Messages are appended to memory-mapped segment files of fixed size; a
+ * message's position in the journal is its segment number times the
+ * segment size plus its offset. Once a message has been sent (or dropped on
+ * purpose) it is acknowledged, and the checkpoint file records the position
+ * below which everything is acknowledged. Messages sent out of order past
+ * the checkpoint are sent again after a restart.
+ *
+ * Appending only copies into the mapped buffer; {@link #sync()} forces the
+ * buffer to disk, writes the checkpoint and deletes segments that are no
+ * longer needed, and is meant to run periodically in the background.
+ *
+ * Record layout: int length, int CRC32 of the body, then the body: byte
+ * priority, long time, short target length, target, text (UTF-8). A zero
+ * length marks the end of a segment.
+ */
+public class Journal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Journal.class);
+
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int HEADER = 8;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String CHECKPOINT = "journal.checkpoint";
+    private static final String UTF8 = "UTF-8";
+
+    private final File directory;
+    private final TreeSet<Long> pending = new TreeSet<Long>();
+    private final CRC32 crc = new CRC32();
+    private final Object syncLock = new Object();
+    private MappedByteBuffer buffer;
+    private int segment = -1;
+    private long checkpoint = 0;
+    private long savedCheckpoint = -1;
+    private boolean dirty = false;
+    private boolean closed = false;
+    private final boolean enabled;
+
+    /**
+     * @param directory where to keep the journal, or null to keep nothing
+     */
+    public Journal(File directory) {
+        this.directory = directory;
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            LOG.warn("Could not create " + directory + ", notifications won't survive a restart");
+        }
+        enabled = directory != null && directory.isDirectory();
+        checkpoint = readCheckpoint();
+    }
+
+    /**
+     * Reads the messages that were written but never acknowledged, oldest
+     * first, and opens the journal for appending after them.
+     */
+    public synchronized List<Message> recover() {
+        List<Message> messages = new ArrayList<Message>();
+        if (!enabled()) {
+            return messages;
+        }
+
+        int first = (int) (checkpoint / SEGMENT_SIZE);
+        int last = lastSegment();
+        long end = checkpoint;
+        for (int n = first; n <= last; n++) {
+            File file = segmentFile(n);
+            if (!file.exists()) {
+                continue;
+            }
+            try {
+                MappedByteBuffer map = map(file);
+                int offset = n == first ? (int) (checkpoint % SEGMENT_SIZE) : 0;
+                end = (long) n * SEGMENT_SIZE + read(map, offset, (long) n * SEGMENT_SIZE, messages);
+                if (n == last) {
+                    buffer = map;
+                    buffer.position((int) (end % SEGMENT_SIZE));
+                    segment = n;
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not read " + file, e);
+            }
+        }
+
+        if (!messages.isEmpty()) {
+            LOG.info("Recovered " + messages.size() + " unsent messages from " + directory);
+        }
+        for (Message message : messages) {
+            pending.add(message.position);
+        }
+        if (pending.isEmpty()) {
+            checkpoint = end;
+        }
+        return messages;
+    }
+
+    /**
+     * Appends the message and sets its position.
+     */
+    public synchronized void append(Message message) {
+        if (!enabled() || closed) {
+            return;
+        }
+
+        try {
+            byte[] target = message.target.getBytes(UTF8);
+            byte[] text = message.bytes;
+            int length = 1 + 8 + 2 + target.length + text.length;
+            if (buffer == null || buffer.remaining() < HEADER + length + HEADER) {
+                nextSegment();
+            }
+
+            int start = buffer.position();
+            buffer.position(start + HEADER);
+            buffer.put((byte) message.priority.ordinal());
+            buffer.putLong(System.currentTimeMillis());
+            buffer.putShort((short) target.length);
+            buffer.put(target);
+            buffer.put(text);
+            int end = buffer.position();
+
+            crc.reset();
+            for (int i = start + HEADER; i < end; i++) {
+                crc.update(buffer.get(i));
+            }
+            buffer.putInt(start + 4, (int) crc.getValue());
+            // the length goes last, so a torn record reads as the end
+            buffer.putInt(start, length);
+
+            message.position = (long) segment * SEGMENT_SIZE + start;
+            pending.add(message.position);
+            dirty = true;
+        } catch (IOException e) {
+            LOG.warn("Could not append to journal in " + directory, e);
+        }
+    }
+
+    /**
+     * Marks the message as done with, sent or dropped.
+     */
+    public synchronized void ack(Message message) {
+        if (message.position < 0 || !pending.remove(message.position)) {
+            return;
+        }
+
+        long next = pending.isEmpty() ? end() : pending.first();
+        if (next > checkpoint) {
+            checkpoint = next;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Forces appended messages to disk, saves the checkpoint and removes
+     * segments before it.
+     */
+    public void sync() {
+        synchronized (syncLock) {
+            MappedByteBuffer toForce;
+            long toSave;
+            synchronized (this) {
+                if (!dirty || !enabled()) {
+                    return;
+                }
+                dirty = false;
+                toForce = buffer;
+                toSave = checkpoint;
+            }
+
+            // outside the journal lock, appends go on meanwhile
+            if (toForce != null) {
+                toForce.force();
+            }
+            if (toSave != savedCheckpoint && writeCheckpoint(toSave)) {
+                savedCheckpoint = toSave;
+                deleteBefore((int) (toSave / SEGMENT_SIZE));
+            }
+        }
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            dirty = true;
+        }
+        sync();
+    }
+
+    private boolean enabled() {
+        return enabled;
+    }
+
+    private long end() {
+        return buffer == null ? checkpoint : (long) segment * SEGMENT_SIZE + buffer.position();
+    }
+
+    private void nextSegment() throws IOException {
+        if (buffer != null) {
+            // finish the full segment before moving on
+            buffer.force();
+        }
+        // never reuse a segment that may still hold unsent messages
+        segment = Math.max(Math.max(segment, lastSegment()) + 1, (int) (checkpoint / SEGMENT_SIZE));
+        buffer = map(segmentFile(segment));
+        buffer.position(0);
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads records from offset until the end of the segment.
+     *
+     * @return the offset after the last good record
+     */
+    private int read(ByteBuffer map, int offset, long base, List<Message> messages)
+            throws UnsupportedEncodingException {
+        Priority[] priorities = Priority.values();
+        while (offset + HEADER < SEGMENT_SIZE) {
+            int length = map.getInt(offset);
+            if (length <= 0 || offset + HEADER + length > SEGMENT_SIZE) {
+                break;
+            }
+
+            crc.reset();
+            for (int i = offset + HEADER; i < offset + HEADER + length; i++) {
+                crc.update(map.get(i));
+            }
+            if ((int) crc.getValue() != map.getInt(offset + 4)) {
+                LOG.warn("Journal record at " + (base + offset) + " in " + directory + " is damaged, stopping there");
+                break;
+            }
+
+            int p = offset + HEADER;
+            int priority = map.get(p);
+            long time = map.getLong(p + 1);
+            int targetLength = map.getShort(p + 9);
+            byte[] target = new byte[targetLength];
+            byte[] text = new byte[length - 11 - targetLength];
+            ByteBuffer body = map.duplicate();
+            body.position(p + 11);
+            body.get(target);
+            body.get(text);
+
+            if (priority >= 0 && priority < priorities.length) {
+                Message message = new Message(priorities[priority], new String(target, UTF8), new String(text, UTF8),
+                        text, time);
+                message.position = base + offset;
+                messages.add(message);
+            }
+            offset += HEADER + length;
+        }
+        return offset;
+    }
+
+    private File segmentFile(int n) {
+        return new File(directory, SEGMENT_PREFIX + n + SEGMENT_SUFFIX);
+    }
+
+    private int lastSegment() {
+        int last = -1;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                last = Math.max(last, number(name));
+            }
+        }
+        return last;
+    }
+
+    private void deleteBefore(int keep) {
+        String[] names = directory.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            int n = number(name);
+            if (n >= 0 && n < keep && !new File(directory, name).delete()) {
+                LOG.warn("Could not delete " + name + " in " + directory);
+            }
+        }
+    }
+
+    private static int number(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private long readCheckpoint() {
+        if (directory == null) {
+            return 0;
+        }
+        File file = new File(directory, CHECKPOINT);
+        if (!file.exists()) {
+            return 0;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            return raf.readLong();
+        } catch (IOException e) {
+            LOG.warn("Could not read " + file + ", replaying the whole journal", e);
+            return 0;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private boolean writeCheckpoint(long position) {
+        File file = new File(directory, CHECKPOINT);
+        File tmp = new File(directory, CHECKPOINT + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(ByteBuffer.allocate(8).putLong(position).array());
+            out.getFD().sync();
+            out.close();
+            out = null;
+            // rename over an existing file fails on some platforms
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                throw new IOException("Could not rename " + tmp);
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Could not write " + file, e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits outgoing text into PRIVMSG payloads that fit in an IRC line.
+ *
+ * A line is at most 512 bytes including CR LF, and the server relays it to
+ * others prefixed with our ":nick!user@host", so the payload gets what is
+ * left after the prefix, the command and the target. Lengths are counted
+ * in UTF-8 bytes, the encoding the connection uses. Embedded line breaks
+ * start a new payload, long text is split at the last space that fits or,
+ * failing that, at the last whole character.
+ */
+public class LineSplitter {
+
+    public static final int MAX_LINE = 512;
+
+    /** Longest host name the server may put in our prefix */
+    private static final int MAX_HOST = 63;
+
+    private static final String PRIVMSG = " PRIVMSG ";
+
+    private volatile int sourceLength;
+
+    public LineSplitter(String nickname, String username) {
+        setSource(nickname, username);
+    }
+
+    /**
+     * Updates the prefix size, call when our nickname changes.
+     */
+    public void setSource(String nickname, String username) {
+        // ":" nick "!~" user "@" host
+        sourceLength = 1 + utf8Length(nickname, 0, nickname.length()) + 2
+                + utf8Length(username, 0, username.length()) + 1 + MAX_HOST;
+    }
+
+    /**
+     * @return the number of payload bytes available when sending to a
+     *         target of the given length
+     */
+    public int limit(String target) {
+        // a nonsense configuration should still get something through
+        return Math.max(available(target), 64);
+    }
+
+    /**
+     * @return true if a payload of the given size fits in one line to the
+     *         target
+     */
+    public boolean fits(String target, int bytes) {
+        return bytes <= available(target);
+    }
+
+    private int available(String target) {
+        return MAX_LINE - 2 - sourceLength - PRIVMSG.length()
+                - utf8Length(target, 0, target.length()) - 2;
+    }
+
+    /**
+     * @return the payloads to send, one or more
+     */
+    public List<String> split(String text, int maxBytes) {
+        if (text.length() <= maxBytes / 3 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+            // can't be too long even if every char takes three bytes
+            return Collections.singletonList(text);
+        }
+
+        List<String> chunks = new ArrayList<String>(2);
+        int start = 0;
+        while (start <= text.length()) {
+            int end = nextBreak(text, start);
+            splitLine(text, start, end, maxBytes, chunks);
+            start = end + 1;
+        }
+        if (chunks.isEmpty()) {
+            chunks.add("");
+        }
+        return chunks;
+    }
+
+    private static int nextBreak(String text, int start) {
+        for (int i = start; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n' || c == '\r') {
+                return i;
+            }
+        }
+        return text.length();
+    }
+
+    private static void splitLine(String text, int start, int end, int maxBytes, List<String> chunks) {
+        while (start < end) {
+            int bytes = 0;
+            int fit = start;
+            int space = -1;
+            while (fit < end) {
+                char c = text.charAt(fit);
+                int width = 1;
+                int size;
+                if (c < 0x80) {
+                    size = 1;
+                } else if (c < 0x800) {
+                    size = 2;
+                } else if (Character.isHighSurrogate(c) && fit + 1 < end
+                        && Character.isLowSurrogate(text.charAt(fit + 1))) {
+                    size = 4;
+                    width = 2;
+                } else {
+                    size = 3;
+                }
+                if (bytes + size > maxBytes) {
+                    break;
+                }
+                if (c == ' ') {
+                    space = fit;
+                }
+                bytes += size;
+                fit += width;
+            }
+
+            int cut = fit;
+            if (fit < end && space > start) {
+                cut = space;
+            }
+            chunks.add(text.substring(start, cut));
+
+            start = cut;
+            while (start < end && text.charAt(start) == ' ') {
+                start++;
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes the chars from start to end take in UTF-8
+     */
+    public static int utf8Length(CharSequence text, int start, int end) {
+        int bytes = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+}
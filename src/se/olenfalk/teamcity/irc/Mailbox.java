@@ -0,0 +1,428 @@
+package se.olenfalk.teamcity.irc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Personal notifications for nicks that are offline, kept on disk until the
+ * nick shows up again.
+ *
+ * Messages are appended to numbered segment files, one record per line:
+ * time, nick, priority and text separated by tabs. Delivering a nick's mail
+ * appends a record with priority "-" that cancels everything before it for
+ * that nick. All live messages are also held in memory, bounded by a number
+ * per nick and an age, so {@link #compact()} simply writes them to a fresh
+ * segment and deletes the older ones.
+ */
+public class Mailbox {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Mailbox.class);
+
+    public static class Mail {
+        public final long time;
+        public final Priority priority;
+        public final String text;
+
+        Mail(long time, Priority priority, String text) {
+            this.time = time;
+            this.priority = priority;
+            this.text = text;
+        }
+    }
+
+    private static final String SEGMENT_PREFIX = "mailbox-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String DELIVERED = "-";
+    private static final long MAX_SEGMENT_BYTES = 1024 * 1024;
+    private static final String UTF8 = "UTF-8";
+
+    private final File directory;
+    private final Map<String, ArrayDeque<Mail>> mail = new HashMap<String, ArrayDeque<Mail>>();
+    private int perNick;
+    private long maxAge;
+    private int segment = 0;
+    private FileOutputStream stream;
+    private Writer out;
+    private long segmentBytes = 0;
+    private long diskBytes = 0;
+    private long liveBytes = 0;
+    private long lastTime = 0;
+
+    /**
+     * Loads whatever is left in the directory.
+     *
+     * @param perNick  messages kept per nick, oldest dropped first
+     * @param maxAge   days a message is kept
+     */
+    public Mailbox(File directory, int perNick, int maxAge) {
+        this.directory = directory;
+        setLimits(perNick, maxAge);
+        load();
+    }
+
+    public synchronized void setLimits(int perNick, int maxAge) {
+        this.perNick = perNick;
+        this.maxAge = TimeUnit.DAYS.toMillis(maxAge);
+    }
+
+    /**
+     * Stores a message for the nick.
+     */
+    public synchronized void add(String nick, Priority priority, String text) {
+        if (perNick <= 0) {
+            return;
+        }
+
+        String key = nick.toLowerCase();
+        Mail message = new Mail(now(), priority, text);
+        // kept in memory even if the disk is full
+        append(key, message);
+        put(key, message);
+    }
+
+    /**
+     * Removes and returns the nick's unexpired messages, oldest first.
+     */
+    public synchronized List<Mail> take(String nick) {
+        String key = nick.toLowerCase();
+        ArrayDeque<Mail> messages = mail.remove(key);
+        if (messages == null) {
+            return Collections.emptyList();
+        }
+
+        for (Mail message : messages) {
+            liveBytes -= sizeOf(key, message);
+        }
+        append(key, new Mail(now(), null, ""));
+
+        long cutoff = System.currentTimeMillis() - maxAge;
+        List<Mail> result = new ArrayList<Mail>(messages.size());
+        for (Mail message : messages) {
+            if (message.time >= cutoff) {
+                result.add(message);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true if there is something for the nick
+     */
+    public synchronized boolean hasMail(String nick) {
+        return mail.containsKey(nick.toLowerCase());
+    }
+
+    /**
+     * Drops expired messages and, if the files hold mostly dead records,
+     * rewrites the live ones into a new segment. Runs in the background.
+     */
+    public synchronized void compact() {
+        expire();
+        if (diskBytes <= 2 * liveBytes + MAX_SEGMENT_BYTES / 4) {
+            return;
+        }
+
+        File[] old = segments();
+        long oldBytes = diskBytes;
+        closeSegment();
+        segment++;
+        diskBytes = 0;
+        boolean written = true;
+        for (Map.Entry<String, ArrayDeque<Mail>> entry : mail.entrySet()) {
+            for (Mail message : entry.getValue()) {
+                written = written && write(entry.getKey(), message);
+            }
+        }
+        if (!written || !sync()) {
+            // keep the old segments, they still have everything
+            new File(directory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX).delete();
+            segment++;
+            diskBytes = oldBytes;
+            return;
+        }
+
+        for (File file : old) {
+            if (!file.delete()) {
+                LOG.warn("Could not delete " + file);
+            }
+        }
+        LOG.info("Compacted mailbox in " + directory + " to " + diskBytes + " bytes");
+    }
+
+    public synchronized void close() {
+        closeSegment();
+    }
+
+    /**
+     * @return the current time, but always later than the last record so
+     *         delivery records cancel exactly what was taken
+     */
+    private long now() {
+        lastTime = Math.max(System.currentTimeMillis(), lastTime + 1);
+        return lastTime;
+    }
+
+    private void put(String key, Mail message) {
+        ArrayDeque<Mail> messages = mail.get(key);
+        if (messages == null) {
+            messages = new ArrayDeque<Mail>();
+            mail.put(key, messages);
+        }
+        messages.addLast(message);
+        liveBytes += sizeOf(key, message);
+
+        while (!messages.isEmpty() && messages.size() > perNick) {
+            liveBytes -= sizeOf(key, messages.removeFirst());
+        }
+        if (messages.isEmpty()) {
+            mail.remove(key);
+        }
+    }
+
+    private void expire() {
+        long cutoff = System.currentTimeMillis() - maxAge;
+        for (Iterator<Map.Entry<String, ArrayDeque<Mail>>> it = mail.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, ArrayDeque<Mail>> entry = it.next();
+            ArrayDeque<Mail> messages = entry.getValue();
+            while (!messages.isEmpty() && messages.peekFirst().time < cutoff) {
+                liveBytes -= sizeOf(entry.getKey(), messages.removeFirst());
+            }
+            if (messages.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    private void load() {
+        File[] files = segments();
+        for (File file : files) {
+            segment = Math.max(segment, number(file));
+            diskBytes += file.length();
+            read(file);
+        }
+        expire();
+        if (files.length > 0) {
+            LOG.info("Loaded mailbox from " + directory + ": " + mail.size() + " nicks with mail");
+        }
+    }
+
+    private void read(File file) {
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length < 4) {
+                    // torn write at the end of a segment
+                    continue;
+                }
+                try {
+                    long time = Long.parseLong(fields[0]);
+                    String key = fields[1];
+                    lastTime = Math.max(lastTime, time);
+                    if (DELIVERED.equals(fields[2])) {
+                        delivered(key, time);
+                    } else {
+                        put(key, new Mail(time, Priority.valueOf(fields[2]), unescape(fields[3])));
+                    }
+                } catch (IllegalArgumentException e) {
+                    LOG.warn("Skipping bad mailbox record in " + file);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not read " + file, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void delivered(String key, long time) {
+        ArrayDeque<Mail> messages = mail.get(key);
+        if (messages == null) {
+            return;
+        }
+        while (!messages.isEmpty() && messages.peekFirst().time <= time) {
+            liveBytes -= sizeOf(key, messages.removeFirst());
+        }
+        if (messages.isEmpty()) {
+            mail.remove(key);
+        }
+    }
+
+    private boolean append(String key, Mail message) {
+        if (segmentBytes >= MAX_SEGMENT_BYTES) {
+            closeSegment();
+            segment++;
+        }
+        return write(key, message) && flush();
+    }
+
+    private boolean write(String key, Mail message) {
+        try {
+            if (out == null) {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Could not create " + directory);
+                }
+                File file = new File(directory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+                stream = new FileOutputStream(file, true);
+                out = new OutputStreamWriter(stream, UTF8);
+                segmentBytes = file.length();
+            }
+
+            String record = message.time + "\t" + key + "\t"
+                    + (message.priority == null ? DELIVERED : message.priority.name()) + "\t"
+                    + escape(message.text) + "\n";
+            out.write(record);
+            long bytes = LineSplitter.utf8Length(record, 0, record.length());
+            segmentBytes += bytes;
+            diskBytes += bytes;
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Could not write to mailbox in " + directory, e);
+            closeSegment();
+            return false;
+        }
+    }
+
+    private boolean flush() {
+        try {
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Could not write to mailbox in " + directory, e);
+            closeSegment();
+            return false;
+        }
+    }
+
+    private boolean sync() {
+        if (out == null) {
+            // nothing live, nothing to write
+            return true;
+        }
+        if (!flush()) {
+            return false;
+        }
+        try {
+            stream.getFD().sync();
+        } catch (IOException e) {
+            LOG.warn("Could not sync mailbox in " + directory, e);
+            closeSegment();
+            return false;
+        }
+        closeSegment();
+        return true;
+    }
+
+    private void closeSegment() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOG.warn("Could not close mailbox segment in " + directory, e);
+        }
+        out = null;
+        stream = null;
+        segmentBytes = 0;
+    }
+
+    private File[] segments() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+
+        List<File> segments = new ArrayList<File>();
+        for (File file : files) {
+            if (number(file) >= 0) {
+                segments.add(file);
+            }
+        }
+        File[] sorted = segments.toArray(new File[segments.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return number(a) < number(b) ? -1 : number(a) == number(b) ? 0 : 1;
+            }
+        });
+        return sorted;
+    }
+
+    private static int number(File file) {
+        String name = file.getName();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long sizeOf(String key, Mail message) {
+        // roughly what the record takes on disk
+        return 32 + key.length() + message.text.length();
+    }
+
+    static String escape(String text) {
+        StringBuilder out = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String replacement = c == '\\' ? "\\\\" : c == '\n' ? "\\n" : c == '\r' ? "\\r" : c == '\t' ? "\\t" : null;
+            if (replacement != null && out == null) {
+                out = new StringBuilder(text.length() + 8).append(text, 0, i);
+            }
+            if (out != null) {
+                if (replacement != null) out.append(replacement);
+                else out.append(c);
+            }
+        }
+        return out == null ? text : out.toString();
+    }
+
+    static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+        StringBuilder out = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                out.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next == 't' ? '\t' : next);
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,105 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message with {variable} placeholders, parsed once when the config is
+ * loaded. Rendering only appends the literal parts and variable values to
+ * the given builder.
+ */
+public class MessageTemplate {
+
+    public enum Variable {
+        /** Full name and number of the build */
+        BUILD,
+        /** Full name of the build configuration */
+        NAME,
+        NUMBER,
+        /** "succeeded", "failed", ... */
+        STATE,
+        AGENT,
+        /** " (user: comment)" or nothing */
+        COMMENT,
+        /** Number of build problems */
+        PROBLEMS,
+        /** One build problem, only in problem templates */
+        PROBLEM,
+        /** Number of problems left out, only in the more template */
+        MORE;
+
+        static Variable forName(String name) {
+            for (Variable variable : values()) {
+                if (variable.name().equalsIgnoreCase(name)) {
+                    return variable;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final String source;
+    private final String[] literals;
+    private final Variable[] variables;
+
+    /**
+     * @throws IllegalArgumentException for unknown variables
+     */
+    public MessageTemplate(String source) {
+        this.source = source;
+
+        List<String> literals = new ArrayList<String>();
+        List<Variable> variables = new ArrayList<Variable>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < source.length()) {
+            char c = source.charAt(i);
+            int end = c == '{' ? source.indexOf('}', i) : -1;
+            if (end < 0) {
+                literal.append(c);
+                i++;
+                continue;
+            }
+
+            String name = source.substring(i + 1, end);
+            Variable variable = Variable.forName(name);
+            if (variable == null) {
+                throw new IllegalArgumentException("Unknown variable {" + name + "} in template: " + source);
+            }
+            literals.add(literal.toString());
+            variables.add(variable);
+            literal.setLength(0);
+            i = end + 1;
+        }
+        literals.add(literal.toString());
+
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.variables = variables.toArray(new Variable[variables.size()]);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public boolean isEmpty() {
+        return source.length() == 0;
+    }
+
+    /**
+     * @param problem the value of {problem}, or null
+     * @param more the value of {more}
+     */
+    public void render(StringBuilder out, BuildMessage message, String problem, int more) {
+        for (int i = 0; i < variables.length; i++) {
+            out.append(literals[i]);
+            if (variables[i] == Variable.PROBLEM) {
+                if (problem != null) out.append(problem);
+            } else if (variables[i] == Variable.MORE) {
+                out.append(more);
+            } else {
+                out.append(message.get(variables[i]));
+            }
+        }
+        out.append(literals[variables.length]);
+    }
+}
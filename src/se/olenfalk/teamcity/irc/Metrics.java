@@ -0,0 +1,278 @@
+package se.olenfalk.teamcity.irc;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters and latency histograms for the plugin, published over JMX as
+ * {@value #OBJECT_NAME} and shown by the owner-only {@code stats} command.
+ */
+public class Metrics implements MetricsMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Metrics.class);
+
+    public static final String OBJECT_NAME = "se.olenfalk.teamcity.irc:type=Metrics";
+
+    /**
+     * Events per second over the last minute, counted in one-second slots.
+     */
+    public static class Meter {
+        private static final int SLOTS = 60;
+        private static final long STAMP = 0xFFFFFFFF00000000L;
+        private static final long COUNT = 0x00000000FFFFFFFFL;
+
+        private final AtomicLong total = new AtomicLong();
+        /**
+         * The low 32 bits of the second a slot counts in the upper half and
+         * the count in the lower, so starting a new second and counting in
+         * it is one compare-and-set.
+         */
+        private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+
+        public void mark() {
+            total.incrementAndGet();
+
+            long second = currentSecond();
+            int slot = (int) ((second % SLOTS + SLOTS) % SLOTS);
+            long stamp = second << 32;
+            long current;
+            long next;
+            do {
+                current = slots.get(slot);
+                next = (current & STAMP) == stamp ? current + 1 : stamp | 1;
+            } while (!slots.compareAndSet(slot, current, next));
+        }
+
+        public long getCount() {
+            return total.get();
+        }
+
+        public double getRate() {
+            int now = (int) currentSecond();
+            long sum = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                long value = slots.get(i);
+                int age = now - (int) (value >>> 32);
+                if (age >= 0 && age < SLOTS) {
+                    sum += value & COUNT;
+                }
+            }
+            return (double) sum / SLOTS;
+        }
+
+        private static long currentSecond() {
+            return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        }
+    }
+
+    /**
+     * Latency histogram with power-of-two microsecond buckets.
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long nanos) {
+            long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            sum.addAndGet(micros);
+
+            long current;
+            while (micros > (current = max.get()) && !max.compareAndSet(current, micros)) {
+                // retry
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getMeanMillis() {
+            long n = count.get();
+            return n == 0 ? 0 : sum.get() / 1000.0 / n;
+        }
+
+        public double getMaxMillis() {
+            return max.get() / 1000.0;
+        }
+
+        /**
+         * @return an upper bound for the given quantile, e.g. 0.99
+         */
+        public double getQuantileMillis(double quantile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(quantile * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(getMaxMillis(), (1L << i) / 1000.0);
+                }
+            }
+            return getMaxMillis();
+        }
+    }
+
+    public final Meter linesSent = new Meter();
+    public final Meter linesReceived = new Meter();
+    public final Meter buildEvents = new Meter();
+    public final Meter personalNotifications = new Meter();
+    public final AtomicLong droppedMessages = new AtomicLong();
+    public final AtomicLong reconnects = new AtomicLong();
+    public final AtomicLong pingTimeouts = new AtomicLong();
+    public final AtomicLong offlineNotifications = new AtomicLong();
+    public final AtomicLong commandsRejected = new AtomicLong();
+    public final Histogram deliveryLatency = new Histogram();
+    public final Histogram commandLatency = new Histogram();
+
+    private final List<OutboundQueue> queues = new CopyOnWriteArrayList<OutboundQueue>();
+    private final List<Watchdog> watchdogs = new CopyOnWriteArrayList<Watchdog>();
+
+    public Metrics() {
+        try {
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (mbeans.isRegistered(name)) {
+                // left over from an earlier instance of the plugin
+                mbeans.unregisterMBean(name);
+            }
+            mbeans.registerMBean(this, name);
+        } catch (Exception e) {
+            LOG.warn("Could not register IRC metrics with JMX", e);
+        }
+    }
+
+    public void addQueue(OutboundQueue queue) {
+        queues.add(queue);
+    }
+
+    public void removeQueue(OutboundQueue queue) {
+        queues.remove(queue);
+    }
+
+    public void addWatchdog(Watchdog watchdog) {
+        watchdogs.add(watchdog);
+    }
+
+    public void removeWatchdog(Watchdog watchdog) {
+        watchdogs.remove(watchdog);
+    }
+
+    @Override
+    public long getLinesSent() {
+        return linesSent.getCount();
+    }
+
+    @Override
+    public double getLinesSentPerSecond() {
+        return linesSent.getRate();
+    }
+
+    @Override
+    public long getLinesReceived() {
+        return linesReceived.getCount();
+    }
+
+    @Override
+    public long getBuildEvents() {
+        return buildEvents.getCount();
+    }
+
+    @Override
+    public long getPersonalNotifications() {
+        return personalNotifications.getCount();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        int depth = 0;
+        for (OutboundQueue queue : queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    @Override
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    @Override
+    public long getPingTimeouts() {
+        return pingTimeouts.get();
+    }
+
+    @Override
+    public long getLagMillis() {
+        long lag = 0;
+        for (Watchdog watchdog : watchdogs) {
+            lag = Math.max(lag, watchdog.getLagMillis());
+        }
+        return lag;
+    }
+
+    @Override
+    public long getOfflineNotifications() {
+        return offlineNotifications.get();
+    }
+
+    @Override
+    public long getCommandsExecuted() {
+        return commandLatency.getCount();
+    }
+
+    @Override
+    public long getCommandsRejected() {
+        return commandsRejected.get();
+    }
+
+    @Override
+    public double getDeliveryLatencyMeanMillis() {
+        return deliveryLatency.getMeanMillis();
+    }
+
+    @Override
+    public double getDeliveryLatency99Millis() {
+        return deliveryLatency.getQuantileMillis(0.99);
+    }
+
+    @Override
+    public double getDeliveryLatencyMaxMillis() {
+        return deliveryLatency.getMaxMillis();
+    }
+
+    @Override
+    public double getCommandLatencyMeanMillis() {
+        return commandLatency.getMeanMillis();
+    }
+
+    @Override
+    public double getCommandLatency99Millis() {
+        return commandLatency.getQuantileMillis(0.99);
+    }
+}
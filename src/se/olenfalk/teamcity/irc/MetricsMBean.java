@@ -0,0 +1,47 @@
+package se.olenfalk.teamcity.irc;
+
+/**
+ * JMX view of {@link Metrics}.
+ */
+public interface MetricsMBean {
+
+    long getLinesSent();
+
+    double getLinesSentPerSecond();
+
+    long getLinesReceived();
+
+    long getBuildEvents();
+
+    long getPersonalNotifications();
+
+    int getQueueDepth();
+
+    long getDroppedMessages();
+
+    long getReconnects();
+
+    /** Reconnects because the server stopped answering PINGs */
+    long getPingTimeouts();
+
+    /** Round trip of our last PING, the worst over all networks */
+    long getLagMillis();
+
+    /** Private messages not sent because the nick was offline */
+    long getOfflineNotifications();
+
+    long getCommandsExecuted();
+
+    long getCommandsRejected();
+
+    /** From queueing a notification to writing it to the socket */
+    double getDeliveryLatencyMeanMillis();
+
+    double getDeliveryLatency99Millis();
+
+    double getDeliveryLatencyMaxMillis();
+
+    double getCommandLatencyMeanMillis();
+
+    double getCommandLatency99Millis();
+}
@@ -0,0 +1,212 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Case-insensitive index of names by id. Finds an id by exact name or id,
+ * by unique name prefix, and otherwise suggests similar names using a
+ * trigram index ranked by edit distance.
+ */
+public class NameIndex {
+
+    private static final int MAX_SUGGESTIONS = 3;
+    private static final int MAX_CANDIDATES = 20;
+
+    public static class Result {
+        /** The id found, or null */
+        public final String id;
+        /** Names to offer if nothing, or nothing unique, was found */
+        public final List<String> suggestions;
+
+        Result(String id, List<String> suggestions) {
+            this.id = id;
+            this.suggestions = suggestions;
+        }
+    }
+
+    private final Map<String, String> names = new HashMap<String, String>();
+    private final TreeMap<String, Set<String>> byName = new TreeMap<String, Set<String>>();
+    private final Map<String, Set<String>> byTrigram = new HashMap<String, Set<String>>();
+
+    public synchronized void put(String id, String name) {
+        remove(id);
+        names.put(id, name);
+
+        String key = name.toLowerCase();
+        add(byName, key, id);
+        for (String trigram : trigrams(key)) {
+            add(byTrigram, trigram, id);
+        }
+    }
+
+    public synchronized void remove(String id) {
+        String name = names.remove(id);
+        if (name == null) {
+            return;
+        }
+
+        String key = name.toLowerCase();
+        delete(byName, key, id);
+        for (String trigram : trigrams(key)) {
+            delete(byTrigram, trigram, id);
+        }
+    }
+
+    /**
+     * @return a copy of the ids in the index
+     */
+    public synchronized Set<String> getIds() {
+        return new HashSet<String>(names.keySet());
+    }
+
+    public synchronized void clear() {
+        names.clear();
+        byName.clear();
+        byTrigram.clear();
+    }
+
+    public synchronized Result find(String query) {
+        String key = query.toLowerCase();
+
+        Set<String> exact = byName.get(key);
+        if (exact != null && exact.size() == 1) {
+            return found(exact.iterator().next());
+        }
+        if (names.containsKey(query)) {
+            return found(query);
+        }
+
+        SortedMap<String, Set<String>> prefixed = byName.subMap(key, key + Character.MAX_VALUE);
+        Set<String> ids = new LinkedHashSet<String>();
+        for (Set<String> matches : prefixed.values()) {
+            ids.addAll(matches);
+        }
+        if (ids.size() == 1) {
+            return found(ids.iterator().next());
+        }
+        if (!ids.isEmpty()) {
+            List<String> suggestions = new ArrayList<String>();
+            for (String id : ids) {
+                if (suggestions.size() == MAX_SUGGESTIONS) break;
+                suggestions.add(names.get(id));
+            }
+            return new Result(null, suggestions);
+        }
+
+        return new Result(null, similar(key));
+    }
+
+    private List<String> similar(final String key) {
+        // candidates sharing the most trigrams with the query
+        final Map<String, Integer> shared = new HashMap<String, Integer>();
+        for (String trigram : trigrams(key)) {
+            Set<String> ids = byTrigram.get(trigram);
+            if (ids == null) continue;
+            for (String id : ids) {
+                Integer count = shared.get(id);
+                shared.put(id, count == null ? 1 : count + 1);
+            }
+        }
+
+        List<String> candidates = new ArrayList<String>(shared.keySet());
+        Collections.sort(candidates, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return shared.get(b) - shared.get(a);
+            }
+        });
+        if (candidates.size() > MAX_CANDIDATES) {
+            candidates = candidates.subList(0, MAX_CANDIDATES);
+        }
+
+        // then the closest by edit distance
+        final Map<String, Integer> distance = new HashMap<String, Integer>();
+        int limit = Math.max(2, key.length() / 3);
+        List<String> close = new ArrayList<String>();
+        for (String id : candidates) {
+            int d = distance(key, names.get(id).toLowerCase());
+            if (d <= limit) {
+                distance.put(id, d);
+                close.add(id);
+            }
+        }
+        Collections.sort(close, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return distance.get(a) - distance.get(b);
+            }
+        });
+
+        List<String> suggestions = new ArrayList<String>();
+        for (String id : close) {
+            if (suggestions.size() == MAX_SUGGESTIONS) break;
+            suggestions.add(names.get(id));
+        }
+        return suggestions;
+    }
+
+    private static Result found(String id) {
+        return new Result(id, Collections.<String>emptyList());
+    }
+
+    private static Set<String> trigrams(String key) {
+        Set<String> trigrams = new HashSet<String>();
+        String padded = "  " + key + " ";
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            trigrams.add(padded.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    private static void add(Map<String, Set<String>> map, String key, String id) {
+        Set<String> ids = map.get(key);
+        if (ids == null) {
+            ids = new HashSet<String>();
+            map.put(key, ids);
+        }
+        ids.add(id);
+    }
+
+    private static void delete(Map<String, Set<String>> map, String key, String id) {
+        Set<String> ids = map.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Levenshtein distance.
+     */
+    static int distance(String a, String b) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+}
@@ -0,0 +1,55 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jetbrains.buildServer.users.PropertyKey;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.users.UserModel;
+import jetbrains.buildServer.users.UserModelListener;
+
+/**
+ * IRC nicknames of TeamCity users, read from their notifier settings once
+ * and forgotten when the account changes.
+ */
+public class NickCache implements UserModelListener {
+
+    private final PropertyKey key;
+    private final ConcurrentMap<Long, String> nicknames = new ConcurrentHashMap<Long, String>();
+
+    public NickCache(UserModel userModel, PropertyKey key) {
+        this.key = key;
+        userModel.addListener(this);
+    }
+
+    /**
+     * @return the user's IRC nickname, or the username if none is set
+     */
+    public String get(SUser user) {
+        String nickname = nicknames.get(user.getId());
+        if (nickname == null) {
+            nickname = user.getPropertyValue(key);
+            if (nickname == null || nickname.trim().length() == 0) {
+                nickname = user.getUsername();
+            }
+            nickname = nickname.trim();
+            nicknames.put(user.getId(), nickname);
+        }
+        return nickname;
+    }
+
+    @Override
+    public void userAccountCreated(User user) {
+    }
+
+    @Override
+    public void userAccountChanged(User user) {
+        nicknames.remove(user.getId());
+    }
+
+    @Override
+    public void userAccountRemoved(User user) {
+        nicknames.remove(user.getId());
+    }
+}
@@ -2,6 +2,8 @@ package se.olenfalk.teamcity.irc;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -14,13 +16,12 @@ import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.SRunningBuild;
 import jetbrains.buildServer.serverSide.STest;
 import jetbrains.buildServer.serverSide.UserPropertyInfo;
-import jetbrains.buildServer.serverSide.comments.Comment;
 import jetbrains.buildServer.serverSide.mute.MuteInfo;
-import jetbrains.buildServer.serverSide.problems.BuildProblem;
 import jetbrains.buildServer.tests.TestName;
 import jetbrains.buildServer.users.NotificatorPropertyKey;
 import jetbrains.buildServer.users.PropertyKey;
 import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.users.UserModel;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,28 +36,32 @@ public class Notifier implements Notificator {
     private static final String IRC_NICKNAME = "ircNotifier.Nickname";
     private static final PropertyKey NICKNAME = new NotificatorPropertyKey(TYPE, IRC_NICKNAME);
 
-    private IrcConnection connection;
+    private volatile List<IrcConnection> connections = Collections.emptyList();
+    private final NickCache nickCache;
+    private final Metrics metrics;
 
     public static final String APP_NAME = "TeamCity";
 
     /**
      *
      */
-    public Notifier(NotificatorRegistry nr) {
+    public Notifier(NotificatorRegistry nr, UserModel userModel, Metrics metrics) {
         LOG.info("Registering Notifier...");
+        this.metrics = metrics;
+        nickCache = new NickCache(userModel, NICKNAME);
         props = new ArrayList<UserPropertyInfo>();
         //props.add(new UserPropertyInfo(IRC_NICKNAME, "IRC Nickname"));
         //nr.register(this, props);
         nr.register(this);
     }
 
-    public IrcConnection getConnection() {
-        return connection;
+    public List<IrcConnection> getConnections() {
+        return connections;
     }
 
-    public void setConnection(IrcConnection connection) {
-        LOG.info("Connection provided to IRC notifier");
-        this.connection = connection;
+    public void setConnections(List<IrcConnection> connections) {
+        LOG.info(connections.size() + " connection(s) provided to IRC notifier");
+        this.connections = Collections.unmodifiableList(connections);
     }
 
 
@@ -69,26 +74,6 @@ public class Notifier implements Notificator {
         return TYPE;
     }
 
-    private String formatRunningBuild(SRunningBuild srb, String state) {
-        String msg = "Build " + srb.getFullName() + " " + srb.getBuildNumber() + " " + state;
-
-        Comment comment = srb.getBuildComment();
-        if (comment != null) {
-            msg += " (" + comment.getUser().getName() + ": " + comment.getComment() + ")";
-        }
-
-        msg += " (on agent: " + srb.getAgentName() + ")";
-
-        List<BuildProblem> problems = srb.getBuildProblems();
-        if (!problems.isEmpty()) {
-            msg += "\nBuild Problems:\n";
-            for (BuildProblem buildProblem : problems) {
-                msg += "    - " + buildProblem.getStringRepresentation();
-            }
-        }
-        return msg;
-    }
-
     private String formatBuildType(SBuildType build, String what) {
         String msg = "Build type " + build.getFullName() + " " + what;
         return msg;
@@ -108,58 +93,58 @@ public class Notifier implements Notificator {
 
     public void notifyBuildFailed(SRunningBuild srb, Set<SUser> users) {
         LOG.info("notifyBuildFailed");
-        doNotifications(formatRunningBuild(srb, "failed"), users);
+        doNotifications(srb, BuildMessage.Event.FAILED, users, Priority.FAILURE);
     }
 
     public void notifyBuildFailing(SRunningBuild srb, Set<SUser> users) {
         LOG.info("notifyBuildFailing");
-        doNotifications(formatRunningBuild(srb, "failing"), users);
+        doNotifications(srb, BuildMessage.Event.FAILING, users, Priority.FAILURE);
     }
 
     public void notifyBuildProbablyHanging(SRunningBuild srb, Set<SUser> users) {
         LOG.info("notifyBuildProbablyHanging");
-        doNotifications(formatRunningBuild(srb, "probably hanging"), users);
+        doNotifications(srb, BuildMessage.Event.HANGING, users, Priority.HANGING);
     }
 
     public void notifyBuildStarted(SRunningBuild srb, Set<SUser> users) {
         LOG.info("notifyBuildStarted");
-        doNotifications(formatRunningBuild(srb, "started"), users);
+        doNotifications(srb, BuildMessage.Event.STARTED, users, Priority.SUCCESS);
     }
 
     public void notifyBuildSuccessful(SRunningBuild srb, Set<SUser> users) {
         LOG.info("notifyBuildSuccessful");
-        doNotifications(formatRunningBuild(srb, "succeeded"), users);
+        doNotifications(srb, BuildMessage.Event.SUCCEEDED, users, Priority.SUCCESS);
     }
 
     public void notifyResponsibleChanged(SBuildType sbt, Set<SUser> users) {
         LOG.info("notifyResponsibleChanged");
-        doNotifications("Responsible user changed...", users);
+        doNotifications("Responsible user changed...", users, Priority.HANGING);
     }
 
     @Override
     public void notifyLabelingFailed(jetbrains.buildServer.Build build, jetbrains.buildServer.vcs.VcsRoot root,
             java.lang.Throwable t, java.util.Set<jetbrains.buildServer.users.SUser> users) {
         LOG.info("notifyLabelingFailed");
-        doNotifications("Labeling failed...", users);
+        doNotifications("Labeling failed...", users, Priority.FAILURE);
     }
 
     @Override
     public void notifyBuildFailedToStart(SRunningBuild srb, Set<SUser> users) {
         LOG.info("notifyBuildFailedToStart");
-        doNotifications(formatRunningBuild(srb, "failed to start"), users);
+        doNotifications(srb, BuildMessage.Event.FAILED_TO_START, users, Priority.FAILURE);
     }
 
     @Override
     public void notifyResponsibleAssigned(SBuildType build, Set<SUser> users) {
         LOG.info("notifyResponsibleAssigned (Builds)");
-        doNotifications(formatBuildType(build, "was assigned to you."), users);
+        doNotifications(formatBuildType(build, "was assigned to you."), users, Priority.HANGING);
     }
 
     @Override
     public void notifyResponsibleAssigned(TestNameResponsibilityEntry test1, TestNameResponsibilityEntry test2,
             SProject project, Set<SUser> users) {
         LOG.info("notifyResponsibleAssigned (Tests)");
-        doNotifications(formationTestResponsibilityEntry(test1, test2, project, " were assigned to you"), users);
+        doNotifications(formationTestResponsibilityEntry(test1, test2, project, " were assigned to you"), users, Priority.HANGING);
     }
 
     @Override
@@ -190,20 +175,37 @@ public class Notifier implements Notificator {
 
     }
 
-    private void doNotifications(String message, Set<SUser> users) {
-        if(connection == null) {
+    private void doNotifications(SRunningBuild srb, BuildMessage.Event event, Set<SUser> users, Priority priority) {
+        doNotifications(new BuildMessage(event, srb), null, users, priority);
+    }
+
+    private void doNotifications(String message, Set<SUser> users, Priority priority) {
+        doNotifications(null, Collections.singletonList(message), users, priority);
+    }
+
+    /**
+     * Sends either the build, formatted with each network's default
+     * templates, or the given lines to the users on every network.
+     */
+    private void doNotifications(BuildMessage build, List<String> messages, Set<SUser> users, Priority priority) {
+        List<IrcConnection> connections = this.connections;
+        if(connections.isEmpty()) {
             return;
         }
 
+        Set<String> nicknames = new LinkedHashSet<String>();
         for (SUser user : users) {
             LOG.info("notifying user: " + user.getUsername());
-            String username = user.getUsername();
-            String ircNickname = user.getPropertyValue(NICKNAME);
-
-            if (ircNickname == null)
-                ircNickname = username;
+            nicknames.add(nickCache.get(user));
+            metrics.personalNotifications.mark();
+        }
 
-            connection.sendPrivMessage(ircNickname, message);
+        for (IrcConnection connection : connections) {
+            List<String> lines = build == null ? messages : connection.getSettings().templates.format(build);
+            // split once for all users
+            for (String message : lines) {
+                connection.sendPrivMessage(nicknames, message, priority);
+            }
         }
     }
 }
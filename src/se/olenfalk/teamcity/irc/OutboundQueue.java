@@ -0,0 +1,550 @@
+package se.olenfalk.teamcity.irc;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue of outgoing messages. Callers return as soon as the message
+ * is queued; a dedicated sender thread drains the queue, pacing itself with a
+ * {@link TokenBucket} so bursts of notifications don't get us killed for
+ * flooding.
+ *
+ * Messages are kept in one lane per {@link Priority} and the sender always
+ * empties the higher lanes first. When the queue is full the lowest lane
+ * gives way according to the {@link Overflow} policy.
+ *
+ * Messages taken while the writer isn't ready go to a {@link ReplayBuffer}
+ * and are put back in front of their lanes by {@link #resume()}. So do
+ * messages the connection lost after they were written to it; they are
+ * only acknowledged in the {@link Journal} once the writer says they went
+ * out.
+ *
+ * Text is split into lines that fit the IRC line limit by a
+ * {@link LineSplitter} as it is queued, and each line is encoded once,
+ * however many targets it goes to. When the server accepts several targets
+ * per PRIVMSG (see {@link #setMaxTargets(int)}), the sender joins queued
+ * copies of the same line into one, so fan-out costs one line of flood
+ * budget instead of one per target.
+ */
+public class OutboundQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OutboundQueue.class);
+
+    public interface Writer {
+        boolean isReady();
+        /**
+         * @param message the line's text in UTF-8, shared by all copies of
+         *                the line, so must not be changed
+         * @return tells when the line is out, or null if it couldn't be
+         *         handed over at all
+         */
+        Receipt write(String target, byte[] message);
+    }
+
+    public interface Receipt {
+        /** @return true once the line has been written to the socket */
+        boolean isWritten();
+        /** @return true if the connection went away before that */
+        boolean isLost();
+    }
+
+    public enum Overflow {
+        /** Silently drop messages from the lowest lane */
+        DROP,
+        /** Drop messages from the lowest lane, but tell each target how many it missed */
+        SUMMARIZE
+    }
+
+    static class Message {
+        final Priority priority;
+        final String target;
+        final String text;
+        /** The text in UTF-8, the same array for every target of a line */
+        final byte[] bytes;
+        final long created;
+        /** Where the message is in the {@link Journal}, -1 if it isn't */
+        long position = -1;
+
+        Message(Priority priority, String target, String text) {
+            this(priority, target, text, utf8(text));
+        }
+
+        Message(Priority priority, String target, String text, byte[] bytes) {
+            this.priority = priority;
+            this.target = target;
+            this.text = text;
+            this.bytes = bytes;
+            this.created = System.nanoTime();
+        }
+
+        /**
+         * @param time when the message was queued, in wall clock millis
+         */
+        Message(Priority priority, String target, String text, byte[] bytes, long time) {
+            this.priority = priority;
+            this.target = target;
+            this.text = text;
+            this.bytes = bytes;
+            this.created = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - time);
+        }
+
+        static byte[] utf8(String text) {
+            try {
+                return text.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /** How far into a lane to look for copies of a line to send along */
+    private static final int COALESCE_WINDOW = 64;
+    /** How often an idle sender checks on lines written but not yet out */
+    private static final long SETTLE_MILLIS = 1000;
+
+    /** Messages written as one line, waiting for the line to go out */
+    private static class Sent {
+        final Receipt receipt;
+        final List<Message> messages;
+
+        Sent(Receipt receipt, List<Message> messages) {
+            this.receipt = receipt;
+            this.messages = messages;
+        }
+    }
+
+    private final Priority[] priorities = Priority.values();
+    private final ArrayDeque<Message>[] lanes;
+    private final Map<String, Integer> skipped = new LinkedHashMap<String, Integer>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile int capacity;
+    private volatile Overflow overflow;
+    private volatile long slowLag;
+    private final TokenBucket bucket;
+    private final Writer writer;
+    private final ReplayBuffer replay;
+    private final LineSplitter splitter;
+    private final Journal journal;
+    private final Metrics metrics;
+    private final Thread sender;
+    /** Sender thread only */
+    private final ArrayDeque<Sent> inFlight = new ArrayDeque<Sent>();
+    private int size = 0;
+    private volatile int maxTargets = 1;
+    private volatile boolean closed = false;
+
+    /**
+     * @param journal where messages are written before they are queued;
+     *                whatever it holds from before is queued first
+     */
+    public OutboundQueue(String name, IrcSettings settings, Writer writer, Journal journal, Metrics metrics) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayDeque<Message>[] lanes = new ArrayDeque[priorities.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<Message>();
+        }
+        this.lanes = lanes;
+        this.capacity = settings.queueSize;
+        this.overflow = settings.overflow;
+        this.bucket = new TokenBucket(settings.floodRate, settings.floodBurst);
+        this.slowLag = TimeUnit.SECONDS.toMillis(settings.slowLag);
+        this.writer = writer;
+        this.replay = new ReplayBuffer(settings.replayLines, settings.replayBytes, journal);
+        this.splitter = new LineSplitter(settings.nickname, settings.username);
+        this.journal = journal;
+        this.metrics = metrics;
+        metrics.addQueue(this);
+
+        for (Message message : journal.recover()) {
+            lanes[message.priority.ordinal()].addLast(message);
+            size++;
+        }
+
+        sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "IRC sender " + name);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Queues a message without blocking. If the queue is full, the oldest
+     * message in the lowest lane makes room for it.
+     *
+     * @return false if the message, or part of it, was dropped
+     */
+    public boolean offer(Priority priority, String target, String message) {
+        return offer(priority, Collections.singleton(target), message);
+    }
+
+    /**
+     * Queues a message for several targets. It is split to fit the longest
+     * target and every target gets the same lines.
+     *
+     * @return false if the message, or part of it, was dropped for any target
+     */
+    public boolean offer(Priority priority, Collection<String> targets, String message) {
+        if (closed || targets.isEmpty()) {
+            return false;
+        }
+
+        int limit = Integer.MAX_VALUE;
+        for (String target : targets) {
+            limit = Math.min(limit, splitter.limit(target));
+        }
+        List<String> lines = splitter.split(message, limit);
+
+        byte[][] encoded = new byte[lines.size()][];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = Message.utf8(lines.get(i));
+        }
+
+        boolean queued = true;
+        lock.lock();
+        try {
+            for (String target : targets) {
+                for (int i = 0; i < encoded.length; i++) {
+                    queued &= enqueue(priority, target, lines.get(i), encoded[i]);
+                }
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return queued;
+    }
+
+    private boolean enqueue(Priority priority, String target, String line, byte[] bytes) {
+        if (size >= capacity) {
+            ArrayDeque<Message> lowest = lanes[Priority.lowest().ordinal()];
+            if (priority == Priority.lowest() || lowest.isEmpty()) {
+                skip(target);
+                return false;
+            }
+            Message dropped = lowest.removeFirst();
+            journal.ack(dropped);
+            skip(dropped.target);
+            size--;
+        }
+
+        Message message = new Message(priority, target, line, bytes);
+        if (priority != Priority.REPLY) {
+            // replies are only useful right away
+            journal.append(message);
+        }
+        lanes[priority.ordinal()].addLast(message);
+        size++;
+        return true;
+    }
+
+    /**
+     * Updates the prefix size used when splitting, call when our nickname
+     * changes.
+     */
+    public void setSource(String nickname, String username) {
+        splitter.setSource(nickname, username);
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of messages dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Puts everything buffered while the writer wasn't ready back in front
+     * of the queue, in the order it was produced. Call once the connection
+     * is ready for messages again.
+     */
+    public void resume() {
+        if (replay.isEmpty()) {
+            return;
+        }
+
+        ArrayDeque<Message> replayed = new ArrayDeque<Message>();
+        Map<String, Integer> missed = new LinkedHashMap<String, Integer>();
+        replay.drainTo(replayed, missed);
+
+        lock.lock();
+        try {
+            for (Iterator<Message> it = replayed.descendingIterator(); it.hasNext(); ) {
+                Message message = it.next();
+                lanes[message.priority.ordinal()].addFirst(message);
+                size++;
+            }
+            for (Map.Entry<String, Integer> entry : missed.entrySet()) {
+                Integer count = skipped.get(entry.getKey());
+                skipped.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Picks up new queue, overflow, flood and replay limits. Messages
+     * already queued are kept even if they no longer fit.
+     */
+    public void reconfigure(IrcSettings settings) {
+        capacity = settings.queueSize;
+        overflow = settings.overflow;
+        bucket.setRate(settings.floodRate, settings.floodBurst);
+        slowLag = TimeUnit.SECONDS.toMillis(settings.slowLag);
+        replay.setLimits(settings.replayLines, settings.replayBytes);
+    }
+
+    /**
+     * Slows sending down while the server lags by more than the slow-lag
+     * setting, in proportion to how far behind it is, so we don't pile up
+     * lines in a server queue that may get us killed for flooding.
+     */
+    public void setLag(long lagMillis) {
+        long slowLag = this.slowLag;
+        bucket.setSlowdown(slowLag <= 0 || lagMillis <= slowLag ? 1 : (double) slowLag / lagMillis);
+    }
+
+    /**
+     * @param maxTargets how many comma separated targets the server accepts
+     *                   in one PRIVMSG, 1 to send every target its own line
+     */
+    public void setMaxTargets(int maxTargets) {
+        this.maxTargets = Math.max(1, maxTargets);
+    }
+
+    /**
+     * Stops the sender. Messages not sent yet stay in the journal.
+     */
+    public void close() {
+        closed = true;
+        sender.interrupt();
+        journal.close();
+        metrics.removeQueue(this);
+    }
+
+    private void skip(String target) {
+        long total = dropped.incrementAndGet();
+        metrics.droppedMessages.incrementAndGet();
+        if (total == 1 || total % 100 == 0) {
+            LOG.warn("Send queue full, " + total + " messages dropped so far");
+        }
+
+        if (overflow == Overflow.SUMMARIZE) {
+            Integer count = skipped.get(target);
+            skipped.put(target, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * @return the next message, or null if lines are in flight and none
+     *         came within {@link #SETTLE_MILLIS}
+     */
+    private Message take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                for (Priority priority : priorities) {
+                    Message message = lanes[priority.ordinal()].pollFirst();
+                    if (message != null) {
+                        size--;
+                        return message;
+                    }
+                }
+
+                // only tell people what they missed once the backlog is gone
+                Iterator<Map.Entry<String, Integer>> it = skipped.entrySet().iterator();
+                if (it.hasNext()) {
+                    Map.Entry<String, Integer> entry = it.next();
+                    it.remove();
+                    return new Message(Priority.lowest(), entry.getKey(), "(" + entry.getValue() + " notifications skipped)");
+                }
+
+                if (inFlight.isEmpty()) {
+                    notEmpty.await();
+                } else if (!notEmpty.await(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return null;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes queued copies of the message's line for other targets from the
+     * same lane, as many as the server allows and the line has room for.
+     *
+     * @return the other messages, or null if there are none
+     */
+    private List<Message> coalesce(Message message, int maxTargets) {
+        int textBytes = message.bytes.length;
+        StringBuilder targets = new StringBuilder(message.target);
+        List<Message> batch = null;
+
+        lock.lock();
+        try {
+            Iterator<Message> it = lanes[message.priority.ordinal()].iterator();
+            for (int seen = 0; it.hasNext() && seen < COALESCE_WINDOW; seen++) {
+                Message other = it.next();
+                if ((other.bytes != message.bytes && !other.text.equals(message.text)) || contains(message, batch, other.target)) {
+                    continue;
+                }
+
+                int length = targets.length();
+                targets.append(',').append(other.target);
+                if (!splitter.fits(targets.toString(), textBytes)) {
+                    targets.setLength(length);
+                    continue;
+                }
+
+                if (batch == null) {
+                    batch = new ArrayList<Message>();
+                }
+                batch.add(other);
+                it.remove();
+                size--;
+                if (batch.size() + 1 >= maxTargets) {
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return batch;
+    }
+
+    private static boolean contains(Message message, List<Message> batch, String target) {
+        if (message.target.equalsIgnoreCase(target)) {
+            return true;
+        }
+        if (batch != null) {
+            for (Message other : batch) {
+                if (other.target.equalsIgnoreCase(target)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void drain() {
+        while (!closed) {
+            try {
+                settle();
+                Message message = take();
+                if (message == null) {
+                    continue;
+                }
+                if (!writer.isReady()) {
+                    defer(Collections.singletonList(message));
+                    continue;
+                }
+
+                bucket.acquire();
+                if (!writer.isReady()) {
+                    // the connection went while we waited for the flood limit
+                    defer(Collections.singletonList(message));
+                    continue;
+                }
+                List<Message> batch = maxTargets > 1 ? coalesce(message, maxTargets) : null;
+                List<Message> line = new ArrayList<Message>();
+                line.add(message);
+                StringBuilder targets = new StringBuilder(message.target);
+                if (batch != null) {
+                    for (Message other : batch) {
+                        line.add(other);
+                        targets.append(',').append(other.target);
+                    }
+                }
+                Receipt receipt = writer.write(targets.toString(), message.bytes);
+                if (receipt == null) {
+                    defer(line);
+                    continue;
+                }
+                inFlight.addLast(new Sent(receipt, line));
+                metrics.linesSent.mark();
+
+                long now = System.nanoTime();
+                for (Message sent : line) {
+                    metrics.deliveryLatency.record(now - sent.created);
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } catch (Exception e) {
+                LOG.warn("Failed to send message", e);
+            }
+        }
+    }
+
+    /**
+     * Keeps messages for {@link #resume()}, after any lost before them.
+     */
+    private void defer(List<Message> messages) {
+        settle();
+        for (Message message : messages) {
+            replay.add(message);
+        }
+        if (writer.isReady()) {
+            // reconnected meanwhile, resume() may already have run
+            resume();
+        }
+    }
+
+    /**
+     * Acknowledges the lines that have gone out, and replays the ones the
+     * connection lost, in the order they were written. Messages stay in the
+     * journal until then, so a restart sends them again.
+     */
+    private void settle() {
+        boolean lost = false;
+        for (Iterator<Sent> it = inFlight.iterator(); it.hasNext(); ) {
+            Sent sent = it.next();
+            if (sent.receipt.isWritten()) {
+                for (Message message : sent.messages) {
+                    journal.ack(message);
+                }
+                it.remove();
+            } else if (sent.receipt.isLost()) {
+                for (Message message : sent.messages) {
+                    replay.add(message);
+                }
+                it.remove();
+                lost = true;
+            }
+        }
+        if (lost && writer.isReady()) {
+            // already reconnected, and resume() came before we noticed
+            resume();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks whether the nicks we send private messages to are online, so
+ * notifications aren't sent to people who can't read them.
+ *
+ * Nicks are watched from their first message on, up to a limit, least
+ * recently used first out. Servers announcing MONITOR push changes to us;
+ * elsewhere {@link #poll()} asks with batched ISON queries. Until the server
+ * has answered, a nick counts as online.
+ */
+public class Presence {
+
+    public interface Sender {
+        void send(String line);
+    }
+
+    public interface Listener {
+        /** A watched nick was seen coming online */
+        void online(String nick);
+    }
+
+    public static final int RPL_ISON = 303;
+    public static final String RPL_MONONLINE = "730";
+    public static final String RPL_MONOFFLINE = "731";
+
+    private static final String MONITOR = "MONITOR";
+
+    private enum Status {
+        UNKNOWN, ONLINE, OFFLINE
+    }
+
+    private final Sender sender;
+    private final Listener listener;
+    private final Map<String, Status> watched;
+    private final Set<String> added = new HashSet<String>();
+    private final Set<String> removed = new HashSet<String>();
+    private final ArrayDeque<List<String>> pendingIson = new ArrayDeque<List<String>>();
+    private int limit;
+    private boolean monitoring = false;
+
+    public Presence(int limit, Sender sender, Listener listener) {
+        this.limit = limit;
+        this.sender = sender;
+        this.listener = listener;
+        this.watched = new LinkedHashMap<String, Status>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Status> eldest) {
+                if (size() > Presence.this.limit) {
+                    added.remove(eldest.getKey());
+                    removed.add(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized void setLimit(int limit) {
+        this.limit = Math.max(1, limit);
+    }
+
+    /**
+     * @return false if the nick is known to be offline; otherwise true, and
+     *         the nick is watched from now on
+     */
+    public synchronized boolean isOnline(String nick) {
+        String key = nick.toLowerCase();
+        Status status = watched.get(key);
+        if (status == null) {
+            watched.put(key, Status.UNKNOWN);
+            added.add(key);
+            removed.remove(key);
+            return true;
+        }
+        return status != Status.OFFLINE;
+    }
+
+    /**
+     * Forgets what the server told us, call when the connection is lost.
+     */
+    public synchronized void reset() {
+        for (Map.Entry<String, Status> entry : watched.entrySet()) {
+            entry.setValue(Status.UNKNOWN);
+        }
+        added.clear();
+        removed.clear();
+        pendingIson.clear();
+        monitoring = false;
+    }
+
+    /**
+     * Sends the queries needed to bring presence up to date. Call
+     * periodically once registered.
+     *
+     * @param support what the server supports, to choose MONITOR or ISON
+     */
+    public void poll(ServerSupport support) {
+        List<String> lines = new ArrayList<String>();
+        synchronized (this) {
+            String monitor = support.get(MONITOR);
+            if (monitor != null) {
+                if (!monitoring) {
+                    // a new connection, the server knows nothing yet
+                    monitoring = true;
+                    trim(monitor);
+                    added.clear();
+                    removed.clear();
+                    batch("MONITOR + ", ",", watched.keySet(), lines, null);
+                } else {
+                    batch("MONITOR - ", ",", removed, lines, null);
+                    batch("MONITOR + ", ",", added, lines, null);
+                    added.clear();
+                    removed.clear();
+                }
+            } else {
+                added.clear();
+                removed.clear();
+                if (pendingIson.isEmpty()) {
+                    batch("ISON ", " ", watched.keySet(), lines, pendingIson);
+                } else {
+                    // never answered, ask again next time
+                    pendingIson.clear();
+                }
+            }
+        }
+
+        for (String line : lines) {
+            sender.send(line);
+        }
+    }
+
+    /**
+     * Handles RPL_ISON, which lists the online nicks of the oldest
+     * unanswered query.
+     */
+    public void onIson(String nicks) {
+        List<String> cameOnline = new ArrayList<String>();
+        synchronized (this) {
+            List<String> asked = pendingIson.poll();
+            if (asked == null) {
+                return;
+            }
+
+            Set<String> online = new HashSet<String>();
+            for (String nick : nicks.split(" ")) {
+                online.add(nick.toLowerCase());
+            }
+            for (String nick : asked) {
+                update(nick, online.contains(nick) ? Status.ONLINE : Status.OFFLINE, cameOnline);
+            }
+        }
+        notify(cameOnline);
+    }
+
+    /**
+     * Handles RPL_MONONLINE and RPL_MONOFFLINE.
+     *
+     * @param targets comma separated nick!user@host or nick entries
+     */
+    public void onMonitor(boolean online, String targets) {
+        List<String> cameOnline = new ArrayList<String>();
+        synchronized (this) {
+            for (String target : targets.split(",")) {
+                int bang = target.indexOf('!');
+                String nick = (bang < 0 ? target : target.substring(0, bang)).trim();
+                update(nick, online ? Status.ONLINE : Status.OFFLINE, cameOnline);
+            }
+        }
+        notify(cameOnline);
+    }
+
+    /**
+     * Notes presence changes we see in channels.
+     */
+    public void onNick(String oldNick, String newNick) {
+        List<String> cameOnline = new ArrayList<String>();
+        synchronized (this) {
+            update(oldNick, Status.OFFLINE, cameOnline);
+            update(newNick, Status.ONLINE, cameOnline);
+        }
+        notify(cameOnline);
+    }
+
+    public void onJoin(String nick) {
+        List<String> cameOnline = new ArrayList<String>();
+        synchronized (this) {
+            update(nick, Status.ONLINE, cameOnline);
+        }
+        notify(cameOnline);
+    }
+
+    public synchronized void onQuit(String nick) {
+        update(nick, Status.OFFLINE, null);
+    }
+
+    /**
+     * Drops the least recently used nicks beyond the server's MONITOR
+     * limit, if it has one.
+     */
+    private void trim(String monitor) {
+        try {
+            int max = Integer.parseInt(monitor);
+            Iterator<String> it = watched.keySet().iterator();
+            while (watched.size() > max && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+            limit = Math.min(limit, Math.max(1, max));
+        } catch (NumberFormatException e) {
+            // no limit
+        }
+    }
+
+    private void update(String nick, Status status, List<String> cameOnline) {
+        String key = nick.toLowerCase();
+        Status old = watched.get(key);
+        if (old == null) {
+            return;
+        }
+        watched.put(key, status);
+        if (status == Status.ONLINE && old != Status.ONLINE && cameOnline != null) {
+            cameOnline.add(nick);
+        }
+    }
+
+    private void notify(List<String> cameOnline) {
+        for (String nick : cameOnline) {
+            listener.online(nick);
+        }
+    }
+
+    /**
+     * Adds lines of the form prefix + nicks to the list, as many nicks per
+     * line as fit.
+     */
+    private static void batch(String prefix, String separator, Set<String> nicks, List<String> lines,
+            ArrayDeque<List<String>> batches) {
+        StringBuilder line = new StringBuilder(prefix);
+        List<String> batch = new ArrayList<String>();
+        for (Iterator<String> it = nicks.iterator(); it.hasNext(); ) {
+            String nick = it.next();
+            if (!batch.isEmpty() && line.length() + separator.length() + nick.length() > LineSplitter.MAX_LINE - 2) {
+                lines.add(line.toString());
+                if (batches != null) batches.add(batch);
+                line.setLength(prefix.length());
+                batch = new ArrayList<String>();
+            }
+            if (!batch.isEmpty()) line.append(separator);
+            line.append(nick);
+            batch.add(nick);
+        }
+        if (!batch.isEmpty()) {
+            lines.add(line.toString());
+            if (batches != null) batches.add(batch);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package se.olenfalk.teamcity.irc;
+
+/**
+ * Lanes of the outbound queue, most urgent first. The sender always drains a
+ * higher lane before looking at a lower one.
+ */
+public enum Priority {
+    /** Replies to commands someone is waiting for */
+    REPLY,
+    /** Failed builds and other things that need fixing */
+    FAILURE,
+    /** Hanging builds and other things that need attention */
+    HANGING,
+    /** Successful builds and other informational messages */
+    SUCCESS;
+
+    public static Priority lowest() {
+        return SUCCESS;
+    }
+}
@@ -0,0 +1,198 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.util.EventDispatcher;
+
+/**
+ * Looks up projects and build types by name for the build and show
+ * commands. Accepts ids, exact names in any case and unique prefixes, and
+ * suggests close names otherwise. Kept current from project and build type
+ * events.
+ */
+public class ProjectIndex extends BuildServerAdapter {
+
+    private final SBuildServer server;
+    private final NameIndex projects = new NameIndex();
+    private final ConcurrentMap<String, NameIndex> buildTypes = new ConcurrentHashMap<String, NameIndex>();
+    private final ConcurrentMap<String, String> buildTypeProjects = new ConcurrentHashMap<String, String>();
+    private volatile boolean synced = false;
+
+    public ProjectIndex(SBuildServer server, EventDispatcher<BuildServerListener> dispatcher) {
+        this.server = server;
+        dispatcher.addListener(this);
+    }
+
+    /**
+     * @return the project, or null after adding an explanation to the reply
+     */
+    public SProject findProject(String name, List<String> reply) {
+        if (!synced) {
+            resync();
+        }
+
+        NameIndex.Result result = projects.find(name);
+        SProject project = result.id == null ? null : server.getProjectManager().findProjectById(result.id);
+        if (project == null) {
+            reply.add(notFound("Unknown project", result));
+        }
+        return project;
+    }
+
+    /**
+     * @return the build type, or null after adding an explanation to the reply
+     */
+    public SBuildType findBuildType(SProject project, String name, List<String> reply) {
+        NameIndex index = buildTypes.get(project.getProjectId());
+        if (index == null) {
+            index = indexProject(project.getProjectId());
+        }
+
+        NameIndex.Result result = index == null ? null : index.find(name);
+        SBuildType buildType = result == null || result.id == null
+                ? null : server.getProjectManager().findBuildTypeById(result.id);
+        if (buildType == null) {
+            reply.add(notFound("Unknown build type", result));
+        }
+        return buildType;
+    }
+
+    private static String notFound(String message, NameIndex.Result result) {
+        if (result == null || result.suggestions.isEmpty()) {
+            return message;
+        }
+
+        StringBuilder msg = new StringBuilder(message).append(", did you mean ");
+        for (int i = 0; i < result.suggestions.size(); i++) {
+            if (i > 0) {
+                msg.append(i == result.suggestions.size() - 1 ? " or " : ", ");
+            }
+            msg.append('"').append(result.suggestions.get(i)).append('"');
+        }
+        return msg.append('?').toString();
+    }
+
+    @Override
+    public void serverStartup() {
+        resync();
+    }
+
+    @Override
+    public void projectCreated(String projectId) {
+        indexProject(projectId);
+    }
+
+    @Override
+    public void projectPersisted(String projectId) {
+        indexProject(projectId);
+    }
+
+    @Override
+    public void projectRestored(String projectId) {
+        indexProject(projectId);
+    }
+
+    @Override
+    public void projectDearchived(String projectId) {
+        indexProject(projectId);
+    }
+
+    @Override
+    public void projectRemoved(String projectId) {
+        removeProject(projectId);
+    }
+
+    @Override
+    public void projectArchived(String projectId) {
+        removeProject(projectId);
+    }
+
+    @Override
+    public void buildTypeRegistered(SBuildType buildType) {
+        indexProject(buildType.getProjectId());
+    }
+
+    @Override
+    public void buildTypeUnregistered(SBuildType buildType) {
+        indexProject(buildType.getProjectId());
+    }
+
+    @Override
+    public void buildTypeMoved(SBuildType buildType, SProject original) {
+        indexProject(original.getProjectId());
+        indexProject(buildType.getProjectId());
+    }
+
+    @Override
+    public void buildTypeDeleted(String buildTypeId) {
+        String projectId = buildTypeProjects.remove(buildTypeId);
+        if (projectId != null) {
+            indexProject(projectId);
+        }
+    }
+
+    @Override
+    public void serverConfigurationReloaded() {
+        resync();
+    }
+
+    private synchronized void resync() {
+        projects.clear();
+        buildTypes.clear();
+        buildTypeProjects.clear();
+        for (SProject project : server.getProjectManager().getActiveProjects()) {
+            indexProject(project);
+        }
+        synced = true;
+    }
+
+    private NameIndex indexProject(String projectId) {
+        SProject project = server.getProjectManager().findProjectById(projectId);
+        if (project == null || project.isArchived()) {
+            removeProject(projectId);
+            return null;
+        }
+        return indexProject(project);
+    }
+
+    private synchronized NameIndex indexProject(SProject project) {
+        projects.put(project.getProjectId(), project.getName());
+
+        NameIndex index = new NameIndex();
+        for (SBuildType buildType : project.getBuildTypes()) {
+            index.put(buildType.getBuildTypeId(), buildType.getName());
+            buildTypeProjects.put(buildType.getBuildTypeId(), project.getProjectId());
+        }
+        NameIndex old = buildTypes.put(project.getProjectId(), index);
+        if (old != null) {
+            // build types deleted or moved away since
+            Set<String> gone = old.getIds();
+            gone.removeAll(index.getIds());
+            forgetBuildTypes(project.getProjectId(), gone);
+        }
+        return index;
+    }
+
+    private synchronized void removeProject(String projectId) {
+        projects.remove(projectId);
+        NameIndex index = buildTypes.remove(projectId);
+        if (index != null) {
+            forgetBuildTypes(projectId, index.getIds());
+        }
+    }
+
+    private void forgetBuildTypes(String projectId, Set<String> buildTypeIds) {
+        for (String buildTypeId : buildTypeIds) {
+            // unless it has been moved to another project meanwhile
+            buildTypeProjects.remove(buildTypeId, projectId);
+        }
+    }
+}
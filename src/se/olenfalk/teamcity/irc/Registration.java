@@ -0,0 +1,223 @@
+package se.olenfalk.teamcity.irc;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * IRCv3 capability negotiation, and SASL if configured, while registering.
+ * CAP LS goes out together with NICK and USER, so a server that supports
+ * CAP holds registration until we send CAP END, and one that doesn't just
+ * carries on. Authenticating here means the bot is logged in before it
+ * joins anything, without waiting for NickServ.
+ *
+ * One instance per connection, only used on the event loop thread.
+ */
+public class Registration {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Registration.class);
+
+    public enum Sasl {
+        /** Account name and password */
+        PLAIN,
+        /** The TLS client certificate */
+        EXTERNAL
+    }
+
+    public interface Sender {
+        void send(String line);
+    }
+
+    /** Capabilities we use when offered, besides sasl */
+    private static final List<String> WANTED = Arrays.asList("multi-prefix", "server-time");
+    private static final int RPL_LOGGEDIN = 900;
+    private static final int ERR_NICKLOCKED = 902;
+    private static final int RPL_SASLSUCCESS = 903;
+    private static final int ERR_SASLFAIL = 904;
+    private static final int ERR_SASLTOOLONG = 905;
+    private static final int ERR_SASLABORTED = 906;
+    private static final int ERR_SASLALREADY = 907;
+    private static final int AUTHENTICATE_CHUNK = 400;
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final IrcSettings settings;
+    private final Sender sender;
+    private final Map<String, String> offered = new HashMap<String, String>();
+    private final Set<String> enabled = new HashSet<String>();
+    private boolean ended = false;
+
+    public Registration(IrcSettings settings, Sender sender) {
+        this.settings = settings;
+        this.sender = sender;
+    }
+
+    /**
+     * @return the line to send before NICK and USER
+     */
+    public String start() {
+        return "CAP LS 302";
+    }
+
+    public boolean isEnabled(String capability) {
+        return enabled.contains(capability);
+    }
+
+    /**
+     * Looks at a line from the server.
+     *
+     * @return true if the line was part of the negotiation and needs no
+     *         further handling
+     */
+    public boolean handle(IrcEventAdapter.Line line) {
+        if ("CAP".equals(line.command)) {
+            cap(line);
+            return true;
+        }
+        if ("AUTHENTICATE".equals(line.command)) {
+            if ("+".equals(line.param(0))) {
+                authenticate();
+            }
+            return true;
+        }
+        if (ended || !Character.isDigit(line.command.charAt(0))) {
+            return false;
+        }
+
+        int num;
+        try {
+            num = Integer.parseInt(line.command);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (num == RPL_LOGGEDIN) {
+            LOG.info("Logged in to " + settings.name + " as " + line.param(2));
+        } else if (num == RPL_SASLSUCCESS || num == ERR_SASLALREADY) {
+            end();
+        } else if (num == ERR_NICKLOCKED) {
+            // the account forbids our nick; not every server sends 904 after it
+            LOG.warn("SASL login refused on " + settings.name + ", nick is locked: " + line.trailing());
+            end();
+        } else if (num == ERR_SASLFAIL || num == ERR_SASLTOOLONG || num == ERR_SASLABORTED) {
+            LOG.warn("SASL " + settings.saslMechanism + " failed on " + settings.name + ": " + line.trailing());
+            end();
+        }
+        return false;
+    }
+
+    private void cap(IrcEventAdapter.Line line) {
+        String subcommand = line.param(1).toUpperCase();
+        if ("LS".equals(subcommand)) {
+            // "CAP * LS * :..." is continued on the next line
+            boolean more = line.params.size() > 3 && "*".equals(line.param(2));
+            for (String cap : line.trailing().split(" ")) {
+                if (cap.length() == 0) {
+                    continue;
+                }
+                int eq = cap.indexOf('=');
+                offered.put(eq < 0 ? cap : cap.substring(0, eq), eq < 0 ? "" : cap.substring(eq + 1));
+            }
+            if (!more && !ended) {
+                request();
+            }
+        } else if ("ACK".equals(subcommand)) {
+            for (String cap : line.trailing().split(" ")) {
+                if (cap.startsWith("-")) {
+                    enabled.remove(cap.substring(1));
+                } else if (cap.length() > 0) {
+                    enabled.add(cap);
+                }
+            }
+            if (enabled.contains("sasl") && !ended) {
+                sender.send("AUTHENTICATE " + settings.saslMechanism.name());
+            } else {
+                end();
+            }
+        } else if ("NAK".equals(subcommand)) {
+            end();
+        } else if ("DEL".equals(subcommand)) {
+            enabled.removeAll(Arrays.asList(line.trailing().split(" ")));
+        }
+    }
+
+    private void request() {
+        List<String> wanted = new ArrayList<String>();
+        for (String cap : WANTED) {
+            if (offered.containsKey(cap)) {
+                wanted.add(cap);
+            }
+        }
+        if (settings.saslMechanism != null) {
+            String mechanisms = offered.get("sasl");
+            if (mechanisms == null) {
+                LOG.warn(settings.name + " does not offer SASL, registering without it");
+            } else if (mechanisms.length() > 0
+                    && !Arrays.asList(mechanisms.split(",")).contains(settings.saslMechanism.name())) {
+                LOG.warn(settings.name + " does not offer SASL " + settings.saslMechanism + ", only " + mechanisms);
+            } else {
+                wanted.add("sasl");
+            }
+        }
+
+        if (wanted.isEmpty()) {
+            end();
+            return;
+        }
+        StringBuilder req = new StringBuilder("CAP REQ :");
+        for (int i = 0; i < wanted.size(); i++) {
+            if (i > 0) req.append(' ');
+            req.append(wanted.get(i));
+        }
+        sender.send(req.toString());
+    }
+
+    private void authenticate() {
+        if (settings.saslMechanism == Sasl.EXTERNAL) {
+            sender.send("AUTHENTICATE +");
+            return;
+        }
+
+        String user = settings.saslUser == null ? settings.nickname : settings.saslUser;
+        String response;
+        try {
+            response = base64((user + '\0' + user + '\0' + settings.saslPassword).getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        for (int i = 0; i < response.length(); i += AUTHENTICATE_CHUNK) {
+            sender.send("AUTHENTICATE " + response.substring(i, Math.min(response.length(), i + AUTHENTICATE_CHUNK)));
+        }
+        if (response.length() % AUTHENTICATE_CHUNK == 0) {
+            // a full last chunk needs telling that nothing follows
+            sender.send("AUTHENTICATE +");
+        }
+    }
+
+    private void end() {
+        if (!ended) {
+            ended = true;
+            sender.send("CAP END");
+        }
+    }
+
+    static String base64(byte[] bytes) {
+        StringBuilder out = new StringBuilder((bytes.length + 2) / 3 * 4);
+        for (int i = 0; i < bytes.length; i += 3) {
+            int b = (bytes[i] & 0xff) << 16;
+            if (i + 1 < bytes.length) b |= (bytes[i + 1] & 0xff) << 8;
+            if (i + 2 < bytes.length) b |= bytes[i + 2] & 0xff;
+            out.append(BASE64[b >> 18 & 0x3f]).append(BASE64[b >> 12 & 0x3f]);
+            out.append(i + 1 < bytes.length ? BASE64[b >> 6 & 0x3f] : '=');
+            out.append(i + 2 < bytes.length ? BASE64[b & 0x3f] : '=');
+        }
+        return out.toString();
+    }
+}
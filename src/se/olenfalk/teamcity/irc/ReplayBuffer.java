@@ -0,0 +1,93 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.olenfalk.teamcity.irc.OutboundQueue.Message;
+
+/**
+ * Holds messages produced while we are not connected so they can be sent
+ * once we are registered again. Bounded both in lines and in (approximate)
+ * memory; when full the oldest messages are dropped and only counted.
+ */
+public class ReplayBuffer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplayBuffer.class);
+
+    private final ArrayDeque<Message> messages = new ArrayDeque<Message>();
+    private final Map<String, Integer> skipped = new LinkedHashMap<String, Integer>();
+    private int maxLines;
+    private long maxBytes;
+    private long bytes = 0;
+    private final Journal journal;
+
+    /**
+     * @param journal told about messages that are dropped for lack of room
+     */
+    public ReplayBuffer(int maxLines, long maxBytes, Journal journal) {
+        this.journal = journal;
+        setLimits(maxLines, maxBytes);
+    }
+
+    public synchronized void setLimits(int maxLines, long maxBytes) {
+        this.maxLines = maxLines;
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized void add(Message message) {
+        if (maxLines <= 0) {
+            skip(message);
+            return;
+        }
+
+        messages.addLast(message);
+        bytes += sizeOf(message);
+
+        while (messages.size() > maxLines || (bytes > maxBytes && messages.size() > 1)) {
+            Message oldest = messages.removeFirst();
+            bytes -= sizeOf(oldest);
+            skip(oldest);
+        }
+    }
+
+    /**
+     * @return true if nothing was buffered or skipped since the last drain
+     */
+    public synchronized boolean isEmpty() {
+        return messages.isEmpty() && skipped.isEmpty();
+    }
+
+    /**
+     * Moves the buffered messages, oldest first, and the per-target counts of
+     * messages that didn't fit into the given containers.
+     */
+    public synchronized void drainTo(ArrayDeque<Message> replay, Map<String, Integer> missed) {
+        if (!skipped.isEmpty()) {
+            LOG.info("Replaying " + messages.size() + " messages, " + skipped.size() + " targets missed some");
+        }
+
+        replay.addAll(messages);
+        for (Map.Entry<String, Integer> entry : skipped.entrySet()) {
+            Integer count = missed.get(entry.getKey());
+            missed.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+        }
+        messages.clear();
+        skipped.clear();
+        bytes = 0;
+    }
+
+    private void skip(Message message) {
+        journal.ack(message);
+        Integer count = skipped.get(message.target);
+        skipped.put(message.target, count == null ? 1 : count + 1);
+    }
+
+    private static long sizeOf(Message message) {
+        // rough estimate of the heap used by the message and its strings
+        return 64 + 2L * (message.target.length() + message.text.length());
+    }
+}
@@ -0,0 +1,80 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Features the server announces in RPL_ISUPPORT (005) after registration,
+ * e.g. "TARGMAX=PRIVMSG:4,NOTICE:4" or "MAXTARGETS=20". Cleared for every
+ * new connection.
+ */
+public class ServerSupport {
+
+    public static final int RPL_ISUPPORT = 5;
+
+    private final Map<String, String> params = new HashMap<String, String>();
+
+    public synchronized void clear() {
+        params.clear();
+    }
+
+    /**
+     * Adds the tokens of one 005 reply. Servers send several.
+     *
+     * @param tokens the reply's parameters, separated by spaces
+     */
+    public synchronized void update(String tokens) {
+        for (String token : tokens.split(" ")) {
+            if (token.length() == 0) {
+                continue;
+            }
+            if (token.charAt(0) == '-') {
+                params.remove(token.substring(1).toUpperCase());
+                continue;
+            }
+            int eq = token.indexOf('=');
+            if (eq < 0) {
+                params.put(token.toUpperCase(), "");
+            } else {
+                params.put(token.substring(0, eq).toUpperCase(), token.substring(eq + 1));
+            }
+        }
+    }
+
+    /**
+     * @return the value of the parameter, "" for flags without a value, or
+     *         null if the server didn't announce it
+     */
+    public synchronized String get(String name) {
+        return params.get(name);
+    }
+
+    /**
+     * @return how many comma separated targets the command accepts, 1 if
+     *         the server didn't say
+     */
+    public synchronized int getMaxTargets(String command) {
+        String targmax = params.get("TARGMAX");
+        if (targmax != null) {
+            for (String entry : targmax.split(",")) {
+                int colon = entry.indexOf(':');
+                if (colon > 0 && entry.substring(0, colon).equalsIgnoreCase(command)) {
+                    // no number means no limit
+                    return colon == entry.length() - 1 ? Integer.MAX_VALUE : parse(entry.substring(colon + 1));
+                }
+            }
+            return 1;
+        }
+
+        String maxTargets = params.get("MAXTARGETS");
+        return maxTargets == null ? 1 : parse(maxTargets);
+    }
+
+    private static int parse(String value) {
+        try {
+            return Math.max(1, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.List;
+
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SProject;
+
+import org.schwering.irc.lib.IRCUser;
+
+public class ShowCommand extends Command {
+
+    private final ProjectIndex index;
+
+    public ShowCommand(ProjectIndex index) {
+        super("show", "<project name>", "Show the status of the project", 1, Permission.ANYONE);
+        this.index = index;
+    }
+
+    @Override
+    public void execute(IRCUser user, List<String> args, List<String> reply) {
+        SProject project = index.findProject(args.get(0), reply);
+        if(project != null) {
+            for(SBuildType buildType : project.getBuildTypes()) {
+                reply.add(buildType.getFullName() + " - " + buildType.getStatus());
+            }
+        }
+    }
+}
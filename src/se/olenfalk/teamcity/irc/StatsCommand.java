@@ -0,0 +1,32 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.List;
+
+import org.schwering.irc.lib.IRCUser;
+
+public class StatsCommand extends Command {
+
+    private final Metrics metrics;
+
+    public StatsCommand(Metrics metrics) {
+        super("stats", "", "Show how well the bot is keeping up", 0, Permission.OWNER);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void execute(IRCUser user, List<String> args, List<String> reply) {
+        reply.add(String.format("Sent %d lines (%.2f/s), received %d, queued %d, dropped %d",
+                metrics.getLinesSent(), metrics.getLinesSentPerSecond(), metrics.getLinesReceived(),
+                metrics.getQueueDepth(), metrics.getDroppedMessages()));
+        reply.add(String.format("Delivery latency mean %.1f ms, p99 %.1f ms, max %.1f ms",
+                metrics.getDeliveryLatencyMeanMillis(), metrics.getDeliveryLatency99Millis(),
+                metrics.getDeliveryLatencyMaxMillis()));
+        reply.add(String.format("Commands %d (rejected %d), latency mean %.1f ms, p99 %.1f ms",
+                metrics.getCommandsExecuted(), metrics.getCommandsRejected(),
+                metrics.getCommandLatencyMeanMillis(), metrics.getCommandLatency99Millis()));
+        reply.add(String.format("Build events %d, personal notifications %d (%d to offline nicks), reconnects %d",
+                metrics.getBuildEvents(), metrics.getPersonalNotifications(), metrics.getOfflineNotifications(),
+                metrics.getReconnects()));
+        reply.add(String.format("Lag %d ms, ping timeouts %d", metrics.getLagMillis(), metrics.getPingTimeouts()));
+    }
+}
@@ -0,0 +1,35 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.List;
+
+import org.schwering.irc.lib.IRCUser;
+
+public class StatusCommand extends Command {
+
+    private final BuildStateSnapshot snapshot;
+
+    public StatusCommand(BuildStateSnapshot snapshot) {
+        super("status", "", "Show the running and queued builds", 0, Permission.ANYONE);
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public void execute(IRCUser user, List<String> args, List<String> reply) {
+        BuildStateSnapshot.State state = snapshot.getState();
+
+        if(!state.running.isEmpty()) {
+            reply.add("Running builds:");
+            for(String build : state.running) {
+                reply.add(" - " + build);
+            }
+        } else {
+            reply.add("No running builds");
+        }
+
+        if(state.queued > 0) {
+            reply.add(state.queued + " queued builds");
+        } else {
+            reply.add("No queued builds");
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Templates for build notifications, one per event plus the header and
+ * per-problem lines that follow a build with problems. Templates not set
+ * here come from the parent set, and finally from {@link #DEFAULTS}.
+ */
+public class TemplateSet {
+
+    /** Template key for the line before the list of problems */
+    public static final String PROBLEMS_HEADER = "problems-header";
+    /** Template key for each problem */
+    public static final String PROBLEM = "problem";
+    /** Template key for the line after the problems that didn't fit */
+    public static final String MORE = "more";
+
+    public static final TemplateSet DEFAULTS = new TemplateSet(null, null);
+
+    static {
+        MessageTemplate build = new MessageTemplate("Build {build} {state}{comment} (on agent: {agent})");
+        for (BuildMessage.Event event : BuildMessage.Event.values()) {
+            DEFAULTS.templates.put(event.key, build);
+        }
+        DEFAULTS.templates.put(PROBLEMS_HEADER, new MessageTemplate("Build Problems:"));
+        DEFAULTS.templates.put(PROBLEM, new MessageTemplate("    - {problem}"));
+        DEFAULTS.templates.put(MORE, new MessageTemplate("    ... and {more} more"));
+        DEFAULTS.maxProblems = 10;
+    }
+
+    private static final ThreadLocal<StringBuilder> BUILDER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    private final String name;
+    private final TemplateSet parent;
+    private final Map<String, MessageTemplate> templates = new LinkedHashMap<String, MessageTemplate>();
+    private int maxProblems = -1;
+
+    public TemplateSet(String name, TemplateSet parent) {
+        this.name = name;
+        this.parent = parent;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void put(String key, MessageTemplate template) {
+        templates.put(key, template);
+    }
+
+    /**
+     * @return the templates set here, not inherited ones
+     */
+    public Map<String, MessageTemplate> getTemplates() {
+        return templates;
+    }
+
+    /**
+     * @param maxProblems how many problems to list before the more line, or
+     *                    -1 to inherit
+     */
+    public void setMaxProblems(int maxProblems) {
+        this.maxProblems = maxProblems;
+    }
+
+    /**
+     * @return the limit set here, -1 if inherited
+     */
+    public int getOwnMaxProblems() {
+        return maxProblems;
+    }
+
+    public int getMaxProblems() {
+        if (maxProblems < 0 && parent != null) {
+            return parent.getMaxProblems();
+        }
+        return maxProblems;
+    }
+
+    public MessageTemplate get(String key) {
+        MessageTemplate template = templates.get(key);
+        if (template == null && parent != null) {
+            return parent.get(key);
+        }
+        return template;
+    }
+
+    public static boolean isKey(String key) {
+        return PROBLEMS_HEADER.equals(key) || PROBLEM.equals(key) || MORE.equals(key)
+                || BuildMessage.Event.forKey(key) != null;
+    }
+
+    /**
+     * @return the lines to send for the message
+     */
+    public List<String> format(BuildMessage message) {
+        List<String> problems = message.getProblems();
+        int shown = Math.min(problems.size(), Math.max(0, getMaxProblems()));
+        List<String> lines = new ArrayList<String>(problems.isEmpty() ? 1 : shown + 3);
+        StringBuilder out = BUILDER.get();
+
+        render(lines, out, get(message.getEvent().key), message, null, 0);
+        if (!problems.isEmpty()) {
+            render(lines, out, get(PROBLEMS_HEADER), message, null, 0);
+            MessageTemplate problem = get(PROBLEM);
+            for (int i = 0; i < shown; i++) {
+                render(lines, out, problem, message, problems.get(i), 0);
+            }
+            if (shown < problems.size()) {
+                render(lines, out, get(MORE), message, null, problems.size() - shown);
+            }
+        }
+        return lines;
+    }
+
+    private static void render(List<String> lines, StringBuilder out, MessageTemplate template,
+            BuildMessage message, String problem, int more) {
+        if (template == null || template.isEmpty()) {
+            return;
+        }
+        out.setLength(0);
+        template.render(out, message, problem, more);
+        lines.add(out.toString());
+    }
+}
@@ -0,0 +1,121 @@
+package se.olenfalk.teamcity.irc;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import org.schwering.irc.lib.ssl.SSLDefaultTrustManager;
+import org.schwering.irc.lib.ssl.SSLTrustManager;
+
+/**
+ * Sets up TLS from a network's settings. The context is meant to be made
+ * once per network and used for every reconnect, so its session cache lets
+ * the server resume the previous session instead of doing a full
+ * handshake.
+ */
+public final class Tls {
+
+    private Tls() {
+    }
+
+    /**
+     * Loads the trust store and client certificate, if any. Without a trust
+     * store the JVM's default CAs are trusted.
+     */
+    public static SSLContext createContext(IrcSettings settings) throws IOException {
+        try {
+            KeyManager[] keyManagers = null;
+            if (settings.keystore != null) {
+                KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                kmf.init(load(settings.keystore, settings.keystorePassword), password(settings.keystorePassword));
+                keyManagers = kmf.getKeyManagers();
+            }
+
+            TrustManager[] trustManagers = null;
+            if (settings.insecure) {
+                trustManagers = new TrustManager[] { trustAll() };
+            } else if (settings.truststore != null) {
+                TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                tmf.init(load(settings.truststore, settings.truststorePassword));
+                trustManagers = tmf.getTrustManagers();
+            }
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers, trustManagers, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not set up TLS for " + settings.name + ": " + e);
+        }
+    }
+
+    /**
+     * @return a client engine for the network's server, checking the host
+     *         name unless the settings say not to check anything
+     */
+    public static SSLEngine createEngine(SSLContext context, IrcSettings settings) {
+        // host and port are what the session cache looks up
+        SSLEngine engine = context.createSSLEngine(settings.hostname, settings.port);
+        engine.setUseClientMode(true);
+        if (!settings.insecure) {
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+        return engine;
+    }
+
+    private static KeyStore load(String path, String password) throws IOException, GeneralSecurityException {
+        String lower = path.toLowerCase();
+        KeyStore store = KeyStore.getInstance(lower.endsWith(".p12") || lower.endsWith(".pfx")
+                ? "PKCS12" : KeyStore.getDefaultType());
+        InputStream in = new FileInputStream(path);
+        try {
+            store.load(in, password(password));
+        } finally {
+            in.close();
+        }
+        return store;
+    }
+
+    private static char[] password(String password) {
+        return password == null ? new char[0] : password.toCharArray();
+    }
+
+    /**
+     * Accepts any certificate, the way irclib did.
+     */
+    private static X509TrustManager trustAll() {
+        final SSLTrustManager trust = new SSLDefaultTrustManager();
+        return new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+                throw new CertificateException("Not a server");
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+                if (!trust.isTrusted(chain)) {
+                    throw new CertificateException("Certificate not trusted");
+                }
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return trust.getAcceptedIssuers();
+            }
+        };
+    }
+}
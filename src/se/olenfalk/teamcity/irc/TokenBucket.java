@@ -0,0 +1,78 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simple token bucket used to keep outgoing traffic below the server's
+ * flood limit. Tokens refill at {@code rate} per second up to {@code burst}.
+ * A rate of zero or less disables limiting.
+ */
+public class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private double rate;
+    private double slowdown = 1;
+    private double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double rate, int burst) {
+        setRate(rate, burst);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public synchronized void setRate(double rate, int burst) {
+        this.rate = rate;
+        this.capacity = Math.max(1, burst);
+        if (tokens > capacity) {
+            tokens = capacity;
+        }
+    }
+
+    /**
+     * Scales the rate down, e.g. while the server is lagging; 1 is full
+     * speed. While slowed down there is no burst.
+     */
+    public synchronized void setSlowdown(double slowdown) {
+        this.slowdown = Math.max(0.1, Math.min(1, slowdown));
+        if (this.slowdown < 1 && tokens > 1) {
+            tokens = 1;
+        }
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return 0 if a token was taken, otherwise the number of nanoseconds
+     *         until the next one becomes available
+     */
+    public synchronized long tryAcquire() {
+        if (rate <= 0) {
+            return 0;
+        }
+
+        double rate = this.rate * slowdown;
+        double capacity = slowdown < 1 ? 1 : this.capacity;
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / NANOS_PER_SECOND);
+        lastRefill = now;
+
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) ((1 - tokens) * NANOS_PER_SECOND / rate));
+    }
+
+    /**
+     * Blocks until a token is available and takes it.
+     */
+    public void acquire() throws InterruptedException {
+        long wait;
+        while ((wait = tryAcquire()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
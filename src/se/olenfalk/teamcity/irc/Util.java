@@ -1,5 +1,7 @@
 package se.olenfalk.teamcity.irc;
 
+import java.util.concurrent.ThreadFactory;
+
 import jetbrains.buildServer.serverSide.SRunningBuild;
 
 public class Util {
@@ -7,4 +9,19 @@ public class Util {
     public static String getFullName(SRunningBuild srb) {
         return srb.getFullName() + " " + srb.getBuildNumber(); //.replace("???", "");
     }
+
+    public static String getShortName(SRunningBuild srb) {
+        return srb.getFullName() + "#" + srb.getBuildNumber();
+    }
+
+    public static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
 }
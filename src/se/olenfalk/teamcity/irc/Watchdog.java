@@ -0,0 +1,74 @@
+package se.olenfalk.teamcity.irc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends PINGs of our own and times the PONGs. A connection that doesn't
+ * answer within the timeout is taken for dead, long before TCP would notice
+ * a server or route that went away without closing the socket.
+ *
+ * Only one PING is out at a time; while it is, the lag is at least the time
+ * since it was sent.
+ */
+public class Watchdog {
+
+    public interface Sender {
+        void send(String line);
+    }
+
+    private static final String TOKEN_PREFIX = "tc";
+
+    private final Sender sender;
+    private String token;
+    private long sentAt;
+    private long lag = 0;
+    private long sequence = 0;
+
+    public Watchdog(Sender sender) {
+        this.sender = sender;
+        reset();
+    }
+
+    /**
+     * Sends a PING if the last one was answered at least interval ago.
+     *
+     * @return false if the PING still out is older than timeout
+     */
+    public synchronized boolean check(long intervalNanos, long timeoutNanos) {
+        long now = System.nanoTime();
+        if (token != null) {
+            return now - sentAt < timeoutNanos;
+        }
+        if (now - sentAt >= intervalNanos) {
+            token = TOKEN_PREFIX + ++sequence;
+            sentAt = now;
+            sender.send("PING :" + token);
+        }
+        return true;
+    }
+
+    /**
+     * Call with the token of every PONG from the server.
+     */
+    public synchronized void onPong(String token) {
+        if (this.token != null && this.token.equals(token)) {
+            lag = System.nanoTime() - sentAt;
+            this.token = null;
+        }
+    }
+
+    public synchronized long getLagMillis() {
+        long current = token == null ? lag : Math.max(lag, System.nanoTime() - sentAt);
+        return TimeUnit.NANOSECONDS.toMillis(current);
+    }
+
+    /**
+     * Forgets the PING that is out, for a new connection. The next check
+     * sends one right away.
+     */
+    public synchronized void reset() {
+        token = null;
+        lag = 0;
+        sentAt = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+    }
+}